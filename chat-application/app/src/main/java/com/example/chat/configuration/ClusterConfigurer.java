@@ -0,0 +1,64 @@
+package com.example.chat.configuration;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.example.chat.service.ClusterTransport;
+import com.example.chat.service.cluster.ClusterTransportType;
+import com.example.chat.service.cluster.LoopbackClusterTransport;
+import com.example.chat.service.cluster.TcpClusterTransport;
+
+@Configuration
+public class ClusterConfigurer {
+
+    // A loopback node on a hub of its own runs alone, which is the default.
+    @Bean(destroyMethod = "close")
+    ClusterTransport clusterTransport(
+            @Value("${cluster.transport:LOOPBACK}") ClusterTransportType type,
+            @Value("${cluster.node-id:}") String nodeId,
+            @Value("${cluster.tcp.bind-address:127.0.0.1}") String bindAddress,
+            @Value("${cluster.secret:}") String secret,
+            @Value("${cluster.tcp.port:7600}") int port,
+            @Value("${cluster.tcp.peers:}") String peers,
+            @Value("${cluster.tcp.reconnect-interval:1000}") long reconnectInterval,
+            @Value("${cluster.tcp.max-queued-bytes:16777216}") long maxQueuedBytes) {
+        String id = nodeId.isBlank() ? UUID.randomUUID().toString() : nodeId;
+        return switch (type) {
+            case LOOPBACK -> new LoopbackClusterTransport(id, new LoopbackClusterTransport.Hub());
+            case TCP -> new TcpClusterTransport(
+                    id,
+                    new InetSocketAddress(bindAddress, port),
+                    secret,
+                    parsePeers(peers),
+                    reconnectInterval,
+                    maxQueuedBytes);
+        };
+    }
+
+    // Peers are listed as host:port, separated by commas.
+    private static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            String address = peer.trim();
+            if (address.isEmpty()) {
+                continue;
+            }
+            int separator = address.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid cluster peer address: " + address);
+            }
+            String host = address.substring(0, separator);
+            int port = Integer.parseInt(address.substring(separator + 1));
+            // Resolved when connecting, so a peer that is not up yet does not fail startup.
+            addresses.add(InetSocketAddress.createUnresolved(host, port));
+        }
+        return addresses;
+    }
+
+}
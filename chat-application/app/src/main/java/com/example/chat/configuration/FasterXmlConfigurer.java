@@ -4,16 +4,19 @@ import java.time.LocalDateTime;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 
 import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 
 @Configuration
 public class FasterXmlConfigurer {
 
     @Bean
+    @Primary
     ObjectMapper objectMapper() {
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.disable(SerializationFeature.INDENT_OUTPUT);
@@ -21,6 +24,14 @@ public class FasterXmlConfigurer {
         return objectMapper;
     }
 
+    // Binary sub-protocol sessions share the JSON mapper's configuration.
+    @Bean
+    CBORMapper cborMapper() {
+        CBORMapper cborMapper = new CBORMapper();
+        cborMapper.registerModule(simpleModule());
+        return cborMapper;
+    }
+
     @Bean
     Module simpleModule() {
         SimpleModule module = new SimpleModule();
@@ -0,0 +1,39 @@
+package com.example.chat.entity;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class ChatLogPage {
+
+    // Read-only views of the stored frames, oldest first.
+    private final List<ByteBuffer> records;
+    private final long firstSequence;
+    private final boolean hasMore;
+
+    public ChatLogPage(List<ByteBuffer> records, long firstSequence, boolean hasMore) {
+        this.records = records;
+        this.firstSequence = firstSequence;
+        this.hasMore = hasMore;
+    }
+
+    public List<ByteBuffer> getRecords() {
+        return this.records;
+    }
+
+    public long getFirstSequence() {
+        return this.firstSequence;
+    }
+
+    public boolean hasMore() {
+        return this.hasMore;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChatLogPage[records=%d, firstSequence=%d, hasMore=%s]",
+                this.records.size(),
+                this.firstSequence,
+                this.hasMore);
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.example.chat.entity;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+public class MessageRing {
+
+    // Shared by every room without a backlog, so it keeps no state and takes no lock.
+    public static final MessageRing EMPTY = new EmptyMessageRing();
+
+    // Frames are stored contiguously. One that does not fit before the end of the buffer
+    // starts over at offset zero, and the records it overlaps are evicted.
+    private final ByteBuffer buffer;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final LongAdder arenaUsedBytes;
+
+    // Guarded by this ring.
+    private int head;
+    private int count;
+    private int writePosition;
+    private int usedBytes;
+    private boolean closed;
+
+    public MessageRing(ByteBuffer buffer, int maxFrames, LongAdder arenaUsedBytes) {
+        this.buffer = buffer;
+        this.offsets = new int[maxFrames];
+        this.lengths = new int[maxFrames];
+        this.arenaUsedBytes = arenaUsedBytes;
+    }
+
+    public int getMaxFrames() {
+        return this.offsets.length;
+    }
+
+    public int getCapacity() {
+        return this.buffer != null ? this.buffer.capacity() : 0;
+    }
+
+    public synchronized int size() {
+        return this.count;
+    }
+
+    public synchronized int getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    public synchronized boolean append(byte[] frame) {
+        int length = frame.length;
+        if (this.closed || this.offsets.length == 0 || length == 0 || length > this.buffer.capacity()) {
+            return false;
+        }
+        int position = this.writePosition;
+        boolean wrapped = position + length > this.buffer.capacity();
+        if (wrapped) {
+            position = 0;
+        }
+        while (this.count > 0 && (this.count == this.offsets.length || isOverwritten(position, length, wrapped))) {
+            evictOldest();
+        }
+        this.buffer.put(position, frame);
+        int slot = (this.head + this.count) % this.offsets.length;
+        this.offsets[slot] = position;
+        this.lengths[slot] = length;
+        this.count++;
+        this.writePosition = position + length;
+        this.usedBytes += length;
+        this.arenaUsedBytes.add(length);
+        return true;
+    }
+
+    // Hands out read-only views of the stored frames, oldest first, while holding the lock.
+    public synchronized void forEach(Consumer<ByteBuffer> consumer) {
+        for (int i = 0; i < this.count; i++) {
+            int slot = (this.head + i) % this.offsets.length;
+            consumer.accept(this.buffer
+                    .slice(this.offsets[slot], this.lengths[slot])
+                    .asReadOnlyBuffer());
+        }
+    }
+
+    // Returns the buffer the first time, so its owner can hand it out again. The ring no
+    // longer touches it afterwards.
+    public synchronized ByteBuffer close() {
+        if (this.closed) {
+            return null;
+        }
+        this.closed = true;
+        this.arenaUsedBytes.add(-this.usedBytes);
+        this.head = 0;
+        this.count = 0;
+        this.writePosition = 0;
+        this.usedBytes = 0;
+        return this.buffer;
+    }
+
+    private boolean isOverwritten(int position, int length, boolean wrapped) {
+        int offset = this.offsets[this.head];
+        // Records between the old write position and the end of the buffer are skipped over.
+        if (wrapped && offset >= this.writePosition) {
+            return true;
+        }
+        return offset < position + length && position < offset + this.lengths[this.head];
+    }
+
+    private void evictOldest() {
+        int length = this.lengths[this.head];
+        this.usedBytes -= length;
+        this.arenaUsedBytes.add(-length);
+        this.head = (this.head + 1) % this.offsets.length;
+        this.count--;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("MessageRing[frames=%d/%d, usedBytes=%d/%d]",
+                this.count,
+                this.offsets.length,
+                this.usedBytes,
+                getCapacity());
+    }
+
+    private static class EmptyMessageRing extends MessageRing {
+
+        private EmptyMessageRing() {
+            super(null, 0, null);
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public int getUsedBytes() {
+            return 0;
+        }
+
+        @Override
+        public boolean append(byte[] frame) {
+            return false;
+        }
+
+        @Override
+        public void forEach(Consumer<ByteBuffer> consumer) {
+        }
+
+        @Override
+        public ByteBuffer close() {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "MessageRing[EMPTY]";
+        }
+
+    }
+
+}
@@ -1,19 +1,24 @@
 package com.example.chat.entity;
 
 import java.io.Serializable;
-import java.util.List;
 import java.util.UUID;
 
 public class Room implements Entity, Serializable {
 
     private final UUID id;
     private final String name;
-    private final List<User> users;
+    private final RoomMembers members;
+    private final transient MessageRing recentMessages;
 
-    public Room(UUID id, String name, List<User> users) {
+    public Room(UUID id, String name) {
+        this(id, name, MessageRing.EMPTY);
+    }
+
+    public Room(UUID id, String name, MessageRing recentMessages) {
         this.id = id;
         this.name = name;
-        this.users = users;
+        this.members = new RoomMembers();
+        this.recentMessages = recentMessages;
     }
 
     public UUID getId() {
@@ -24,13 +29,17 @@ public class Room implements Entity, Serializable {
         return this.name;
     }
 
-    public List<User> getUsers() {
-        return this.users;
+    public RoomMembers getMembers() {
+        return this.members;
+    }
+
+    public MessageRing getRecentMessages() {
+        return this.recentMessages;
     }
 
     @Override
     public String toString() {
-        return String.format("Room[id=%s, name='%s', users=%s]", this.id, this.name, this.users);
+        return String.format("Room[id=%s, name='%s', members=%s]", this.id, this.name, this.members);
     }
 
 }
@@ -0,0 +1,62 @@
+package com.example.chat.entity;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class RoomDirectoryChange {
+
+    public enum Type {
+        CREATED,
+        REMOVED,
+    }
+
+    private final long version;
+    private final Type type;
+    private final Room room;
+
+    public RoomDirectoryChange(long version, Type type, Room room) {
+        this.version = version;
+        this.type = type;
+        this.room = room;
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public Room getRoom() {
+        return this.room;
+    }
+
+    public UUID getRoomId() {
+        return this.room.getId();
+    }
+
+    // Keeps only the latest change per room and drops rooms that were both created and
+    // removed within the given changes.
+    public static List<RoomDirectoryChange> collapse(List<RoomDirectoryChange> changes) {
+        Map<UUID, RoomDirectoryChange> netChanges = new LinkedHashMap<>();
+        for (RoomDirectoryChange change : changes) {
+            RoomDirectoryChange previous = netChanges.remove(change.getRoomId());
+            if (previous == null || previous.getType() == change.getType()) {
+                netChanges.put(change.getRoomId(), change);
+            }
+        }
+        return List.copyOf(netChanges.values());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RoomDirectoryChange[version=%d, type=%s, room=%s]",
+                this.version,
+                this.type,
+                this.room.getId());
+    }
+
+}
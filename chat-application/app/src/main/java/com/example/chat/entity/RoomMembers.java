@@ -0,0 +1,115 @@
+package com.example.chat.entity;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RoomMembers {
+
+    private final ConcurrentMap<String, User> members;
+    private final AtomicInteger count;
+    private final AtomicLong version;
+
+    private volatile Snapshot snapshot;
+
+    public RoomMembers() {
+        this.members = new ConcurrentHashMap<>();
+        this.count = new AtomicInteger();
+        this.version = new AtomicLong();
+    }
+
+    public boolean add(User user) {
+        if (this.members.putIfAbsent(user.getSessionId(), user) != null) {
+            return false;
+        }
+        this.count.incrementAndGet();
+        this.version.incrementAndGet();
+        return true;
+    }
+
+    public boolean remove(User user) {
+        if (!this.members.remove(user.getSessionId(), user)) {
+            return false;
+        }
+        this.count.decrementAndGet();
+        this.version.incrementAndGet();
+        return true;
+    }
+
+    public User removeBySessionId(String sessionId) {
+        User user = this.members.remove(sessionId);
+        if (user == null) {
+            return null;
+        }
+        this.count.decrementAndGet();
+        this.version.incrementAndGet();
+        return user;
+    }
+
+    public boolean contains(String sessionId) {
+        return this.members.containsKey(sessionId);
+    }
+
+    public int size() {
+        return this.count.get();
+    }
+
+    public boolean isEmpty() {
+        return this.count.get() == 0;
+    }
+
+    public long getVersion() {
+        return this.version.get();
+    }
+
+    public List<User> getUsers() {
+        return getSnapshot().users;
+    }
+
+    public List<String> getSessionIds() {
+        return getSnapshot().sessionIds;
+    }
+
+    private Snapshot getSnapshot() {
+        // Snapshots are rebuilt at most once per membership change, so repeated fan-out to
+        // an unchanged room reuses the same arrays. A change that races with the rebuild
+        // bumps the version again and is picked up by the next call.
+        long currentVersion = this.version.get();
+        Snapshot current = this.snapshot;
+        if (current != null && current.version == currentVersion) {
+            return current;
+        }
+        User[] users = this.members.values().toArray(new User[0]);
+        String[] sessionIds = new String[users.length];
+        for (int i = 0; i < users.length; i++) {
+            sessionIds[i] = users[i].getSessionId();
+        }
+        current = new Snapshot(currentVersion, users, sessionIds);
+        this.snapshot = current;
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return getUsers().toString();
+    }
+
+    private static class Snapshot {
+
+        private final long version;
+        private final List<User> users;
+        private final List<String> sessionIds;
+
+        private Snapshot(long version, User[] users, String[] sessionIds) {
+            this.version = version;
+            this.users = Collections.unmodifiableList(Arrays.asList(users));
+            this.sessionIds = Collections.unmodifiableList(Arrays.asList(sessionIds));
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.example.chat.entity;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.web.socket.WebSocketSession;
+
+public class SessionContext implements Entity {
+
+    public static final String ATTRIBUTE_NAME = SessionContext.class.getName();
+
+    // The ID of the first connection stays the session ID across resumptions.
+    private final String sessionId;
+    private volatile WebSocketSession session;
+    private volatile WireFormat wireFormat;
+    private volatile boolean detached;
+    private volatile String resumeTokenHash;
+    private final AtomicReference<UserAuth> userAuth;
+    private final AtomicReference<User> user;
+    private final Set<UUID> joinedRoomIds;
+
+    public SessionContext(WebSocketSession session) {
+        this.sessionId = session.getId();
+        this.session = session;
+        this.wireFormat = WireFormat.fromSubProtocol(session.getAcceptedProtocol());
+        this.userAuth = new AtomicReference<>();
+        this.user = new AtomicReference<>();
+        this.joinedRoomIds = ConcurrentHashMap.newKeySet();
+    }
+
+    public static SessionContext fromSession(WebSocketSession session) {
+        return (SessionContext) session.getAttributes().get(ATTRIBUTE_NAME);
+    }
+
+    public String getSessionId() {
+        return this.sessionId;
+    }
+
+    public WebSocketSession getSession() {
+        return this.session;
+    }
+
+    public WireFormat getWireFormat() {
+        return this.wireFormat;
+    }
+
+    public boolean isDetached() {
+        return this.detached;
+    }
+
+    // Keeps the context of a dropped connection around until it is resumed or expires.
+    public void detach() {
+        this.detached = true;
+    }
+
+    // Binds a new connection to this context. The connection may negotiate another wire
+    // format than the one it replaces.
+    public void attach(WebSocketSession session) {
+        this.session = session;
+        this.wireFormat = WireFormat.fromSubProtocol(session.getAcceptedProtocol());
+        session.getAttributes().put(ATTRIBUTE_NAME, this);
+        this.detached = false;
+    }
+
+    public String getResumeTokenHash() {
+        return this.resumeTokenHash;
+    }
+
+    public void setResumeTokenHash(String resumeTokenHash) {
+        this.resumeTokenHash = resumeTokenHash;
+    }
+
+    public UserAuth getUserAuth() {
+        return this.userAuth.get();
+    }
+
+    public boolean setUserAuthIfAbsent(UserAuth userAuth) {
+        return this.userAuth.compareAndSet(null, userAuth);
+    }
+
+    public boolean replaceUserAuth(UserAuth userAuth) {
+        UserAuth current;
+        do {
+            current = this.userAuth.get();
+            if (current == null) {
+                return false;
+            }
+        } while (!this.userAuth.compareAndSet(current, userAuth));
+        return true;
+    }
+
+    public boolean removeUserAuth() {
+        return this.userAuth.getAndSet(null) != null;
+    }
+
+    public boolean isAuthenticated() {
+        UserAuth auth = this.userAuth.get();
+        return auth != null && auth.getUserAuthState() == UserAuthState.SUCCESS;
+    }
+
+    public User getUser() {
+        return this.user.get();
+    }
+
+    public boolean setUserIfAbsent(User user) {
+        return this.user.compareAndSet(null, user);
+    }
+
+    public boolean removeUser() {
+        return this.user.getAndSet(null) != null;
+    }
+
+    public Set<UUID> getJoinedRoomIds() {
+        return Collections.unmodifiableSet(this.joinedRoomIds);
+    }
+
+    public boolean addJoinedRoom(UUID roomId) {
+        return this.joinedRoomIds.add(roomId);
+    }
+
+    public boolean removeJoinedRoom(UUID roomId) {
+        return this.joinedRoomIds.remove(roomId);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SessionContext[sessionId='%s', wireFormat=%s, detached=%s, userAuth=%s, user=%s, joinedRoomIds=%s]",
+                this.sessionId,
+                this.wireFormat,
+                this.detached,
+                this.userAuth.get(),
+                this.user.get(),
+                this.joinedRoomIds);
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.example.chat.entity;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// Rooms and resumable users as read back from disk. Every operation only sets or clears
+// state, so a journal can be replayed over a snapshot that already reflects part of it.
+public class StateSnapshot {
+
+    private final Map<UUID, RoomState> rooms;
+    private final Map<String, UserState> users;
+
+    public StateSnapshot() {
+        this.rooms = new HashMap<>();
+        this.users = new HashMap<>();
+    }
+
+    public Collection<RoomState> getRooms() {
+        return this.rooms.values();
+    }
+
+    public Collection<UserState> getUsers() {
+        return this.users.values();
+    }
+
+    public UserState getUser(String sessionId) {
+        return this.users.get(sessionId);
+    }
+
+    public void putRoom(UUID roomId, String name, int recentMessageCount) {
+        this.rooms.putIfAbsent(roomId, new RoomState(roomId, name, recentMessageCount));
+    }
+
+    public void removeRoom(UUID roomId) {
+        this.rooms.remove(roomId);
+    }
+
+    public void addMember(UUID roomId, String sessionId) {
+        RoomState room = this.rooms.get(roomId);
+        if (room != null) {
+            room.memberSessionIds.add(sessionId);
+        }
+    }
+
+    public void removeMember(UUID roomId, String sessionId) {
+        RoomState room = this.rooms.get(roomId);
+        if (room != null) {
+            room.memberSessionIds.remove(sessionId);
+        }
+    }
+
+    public void putUser(String sessionId, String name, LocalDateTime joinedTime, String resumeTokenHash) {
+        this.users.put(sessionId, new UserState(sessionId, name, joinedTime, resumeTokenHash));
+    }
+
+    public void setResumeTokenHash(String sessionId, String resumeTokenHash) {
+        UserState user = this.users.get(sessionId);
+        if (user != null) {
+            user.resumeTokenHash = resumeTokenHash;
+        }
+    }
+
+    public void removeUser(String sessionId) {
+        this.users.remove(sessionId);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StateSnapshot[rooms=%d, users=%d]", this.rooms.size(), this.users.size());
+    }
+
+    public static class RoomState {
+
+        private final UUID id;
+        private final String name;
+        private final int recentMessageCount;
+        private final Set<String> memberSessionIds;
+
+        private RoomState(UUID id, String name, int recentMessageCount) {
+            this.id = id;
+            this.name = name;
+            this.recentMessageCount = recentMessageCount;
+            this.memberSessionIds = new LinkedHashSet<>();
+        }
+
+        public UUID getId() {
+            return this.id;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public int getRecentMessageCount() {
+            return this.recentMessageCount;
+        }
+
+        public Set<String> getMemberSessionIds() {
+            return this.memberSessionIds;
+        }
+
+    }
+
+    public static class UserState {
+
+        private final String sessionId;
+        private final String name;
+        private final LocalDateTime joinedTime;
+        private String resumeTokenHash;
+
+        private UserState(String sessionId, String name, LocalDateTime joinedTime, String resumeTokenHash) {
+            this.sessionId = sessionId;
+            this.name = name;
+            this.joinedTime = joinedTime;
+            this.resumeTokenHash = resumeTokenHash;
+        }
+
+        public String getSessionId() {
+            return this.sessionId;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public LocalDateTime getJoinedTime() {
+            return this.joinedTime;
+        }
+
+        public String getResumeTokenHash() {
+            return this.resumeTokenHash;
+        }
+
+    }
+
+}
@@ -2,27 +2,28 @@ package com.example.chat.entity;
 
 import java.io.Serializable;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 
-import org.springframework.web.socket.WebSocketSession;
+import com.example.chat.util.JsonTextBuilder;
 
 public class User implements Entity, Serializable {
 
-    private final WebSocketSession session;
+    private final String sessionId;
     private final String name;
     private final LocalDateTime joinedTime;
 
-    public User(WebSocketSession session, String name, LocalDateTime joinedTime) {
-        this.session = session;
+    // Derived from the final fields above, so racing initializations produce equal values.
+    private transient volatile String formattedJoinedTime;
+    private transient volatile String identityFragment;
+
+    public User(String sessionId, String name, LocalDateTime joinedTime) {
+        this.sessionId = sessionId;
         this.name = name;
         this.joinedTime = joinedTime;
     }
 
     public String getSessionId() {
-        return this.session.getId();
-    }
-
-    public WebSocketSession getSession() {
-        return this.session;
+        return this.sessionId;
     }
 
     public String getName() {
@@ -33,10 +34,33 @@ public class User implements Entity, Serializable {
         return this.joinedTime;
     }
 
+    public String getFormattedJoinedTime() {
+        String formattedJoinedTime = this.formattedJoinedTime;
+        if (formattedJoinedTime == null) {
+            formattedJoinedTime = this.joinedTime.format(DateTimeFormatter.ISO_DATE_TIME);
+            this.formattedJoinedTime = formattedJoinedTime;
+        }
+        return formattedJoinedTime;
+    }
+
+    // The serialized "user":{...} member that outbound room events splice in as-is.
+    public String getIdentityFragment() {
+        String identityFragment = this.identityFragment;
+        if (identityFragment == null) {
+            StringBuilder buffer = new StringBuilder("\"user\":{");
+            JsonTextBuilder.appendField(buffer, "sessionId", getSessionId()).append(',');
+            JsonTextBuilder.appendField(buffer, "name", this.name).append(',');
+            JsonTextBuilder.appendField(buffer, "joinedTime", getFormattedJoinedTime());
+            identityFragment = buffer.append('}').toString();
+            this.identityFragment = identityFragment;
+        }
+        return identityFragment;
+    }
+
     @Override
     public String toString() {
         return String.format("User[sessionId='%s', name='%s', joinedTime=%s]",
-                this.session.getId(),
+                this.sessionId,
                 this.name,
                 this.joinedTime);
     }
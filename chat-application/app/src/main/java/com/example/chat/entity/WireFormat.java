@@ -0,0 +1,54 @@
+package com.example.chat.entity;
+
+import java.util.Arrays;
+import java.util.List;
+
+public enum WireFormat {
+    JSON("chat.json", false, false),
+    CBOR("chat.cbor", true, false),
+    JSON_DEFLATE("chat.json+deflate", false, true),
+    CBOR_DEFLATE("chat.cbor+deflate", true, true),
+    ;
+
+    private final String subProtocol;
+    private final boolean binary;
+    private final boolean compressed;
+
+    private WireFormat(String subProtocol, boolean binary, boolean compressed) {
+        this.subProtocol = subProtocol;
+        this.binary = binary;
+        this.compressed = compressed;
+    }
+
+    public String getSubProtocol() {
+        return this.subProtocol;
+    }
+
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    // Outbound binary frames of a compressed format start with one encoding byte, telling
+    // whether the rest of the frame is deflated or not.
+    public boolean isCompressed() {
+        return this.compressed;
+    }
+
+    public static List<String> getSubProtocols() {
+        return Arrays
+                .stream(values())
+                .map(WireFormat::getSubProtocol)
+                .toList();
+    }
+
+    // Clients that negotiate no sub-protocol keep talking JSON text frames.
+    public static WireFormat fromSubProtocol(String subProtocol) {
+        for (WireFormat wireFormat : values()) {
+            if (wireFormat.subProtocol.equals(subProtocol)) {
+                return wireFormat;
+            }
+        }
+        return JSON;
+    }
+
+}
@@ -1,7 +1,10 @@
 package com.example.chat.entity.websocket;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 public class AbstractWebSocketRequest implements WebSocketRequest {
 
+    @JsonProperty("kind")
     protected String type;
     protected String sessionId;
 
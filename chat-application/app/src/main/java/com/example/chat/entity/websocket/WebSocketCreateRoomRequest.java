@@ -0,0 +1,34 @@
+package com.example.chat.entity.websocket;
+
+public class WebSocketCreateRoomRequest extends AbstractWebSocketRequest {
+
+    private String name;
+    private Integer recentMessages;
+
+    public WebSocketCreateRoomRequest() {
+    }
+
+    public WebSocketCreateRoomRequest(
+            String sessionId,
+            String name) {
+        this(sessionId, name, null);
+    }
+
+    public WebSocketCreateRoomRequest(
+            String sessionId,
+            String name,
+            Integer recentMessages) {
+        super("Room#createRoom", sessionId);
+        this.name = name;
+        this.recentMessages = recentMessages;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public Integer getRecentMessages() {
+        return this.recentMessages;
+    }
+
+}
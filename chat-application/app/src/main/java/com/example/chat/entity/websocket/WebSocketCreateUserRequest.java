@@ -0,0 +1,21 @@
+package com.example.chat.entity.websocket;
+
+public class WebSocketCreateUserRequest extends AbstractWebSocketRequest {
+
+    private String username;
+
+    public WebSocketCreateUserRequest() {
+    }
+
+    public WebSocketCreateUserRequest(
+            String sessionId,
+            String username) {
+        super("Auth#createUser", sessionId);
+        this.username = username;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.example.chat.entity.websocket;
+
+public class WebSocketFetchRoomsRequest extends AbstractWebSocketRequest {
+
+    private String cursor;
+    private String prefix;
+    private Integer limit;
+    private Long sinceVersion;
+
+    public WebSocketFetchRoomsRequest() {
+    }
+
+    public WebSocketFetchRoomsRequest(String sessionId) {
+        super("Room#fetchRooms", sessionId);
+    }
+
+    public WebSocketFetchRoomsRequest(
+            String sessionId,
+            String cursor,
+            String prefix,
+            Integer limit,
+            Long sinceVersion) {
+        super("Room#fetchRooms", sessionId);
+        this.cursor = cursor;
+        this.prefix = prefix;
+        this.limit = limit;
+        this.sinceVersion = sinceVersion;
+    }
+
+    public String getCursor() {
+        return this.cursor;
+    }
+
+    public String getPrefix() {
+        return this.prefix;
+    }
+
+    public Integer getLimit() {
+        return this.limit;
+    }
+
+    public Long getSinceVersion() {
+        return this.sinceVersion;
+    }
+
+}
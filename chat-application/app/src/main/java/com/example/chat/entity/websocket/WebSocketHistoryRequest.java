@@ -0,0 +1,37 @@
+package com.example.chat.entity.websocket;
+
+import java.util.UUID;
+
+public class WebSocketHistoryRequest extends AbstractWebSocketRequest {
+
+    private UUID roomId;
+    private Integer limit;
+    private Long before;
+
+    public WebSocketHistoryRequest() {
+    }
+
+    public WebSocketHistoryRequest(
+            String sessionId,
+            UUID roomId,
+            Integer limit,
+            Long before) {
+        super("Room#history", sessionId);
+        this.roomId = roomId;
+        this.limit = limit;
+        this.before = before;
+    }
+
+    public UUID getRoomId() {
+        return this.roomId;
+    }
+
+    public Integer getLimit() {
+        return this.limit;
+    }
+
+    public Long getBefore() {
+        return this.before;
+    }
+
+}
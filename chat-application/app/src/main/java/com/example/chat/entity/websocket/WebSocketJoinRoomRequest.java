@@ -0,0 +1,23 @@
+package com.example.chat.entity.websocket;
+
+import java.util.UUID;
+
+public class WebSocketJoinRoomRequest extends AbstractWebSocketRequest {
+
+    private UUID roomId;
+
+    public WebSocketJoinRoomRequest() {
+    }
+
+    public WebSocketJoinRoomRequest(
+            String sessionId,
+            UUID roomId) {
+        super("Room#join", sessionId);
+        this.roomId = roomId;
+    }
+
+    public UUID getRoomId() {
+        return this.roomId;
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.example.chat.entity.websocket;
+
+import java.util.UUID;
+
+public class WebSocketLeaveRoomRequest extends AbstractWebSocketRequest {
+
+    private UUID roomId;
+
+    public WebSocketLeaveRoomRequest() {
+    }
+
+    public WebSocketLeaveRoomRequest(
+            String sessionId,
+            UUID roomId) {
+        super("Room#leave", sessionId);
+        this.roomId = roomId;
+    }
+
+    public UUID getRoomId() {
+        return this.roomId;
+    }
+
+}
@@ -1,5 +1,26 @@
 package com.example.chat.entity.websocket;
 
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
+@JsonTypeInfo(
+        use = JsonTypeInfo.Id.NAME,
+        include = JsonTypeInfo.As.PROPERTY,
+        property = "kind",
+        visible = true,
+        defaultImpl = WebSocketUnknownRequest.class)
+@JsonSubTypes({
+        @JsonSubTypes.Type(value = WebSocketCreateUserRequest.class, name = "Auth#createUser"),
+        @JsonSubTypes.Type(value = WebSocketResumeSessionRequest.class, name = "Auth#resume"),
+        @JsonSubTypes.Type(value = WebSocketFetchRoomsRequest.class, name = "Room#fetchRooms"),
+        @JsonSubTypes.Type(value = WebSocketCreateRoomRequest.class, name = "Room#createRoom"),
+        @JsonSubTypes.Type(value = WebSocketJoinRoomRequest.class, name = "Room#join"),
+        @JsonSubTypes.Type(value = WebSocketLeaveRoomRequest.class, name = "Room#leave"),
+        @JsonSubTypes.Type(value = WebSocketSendChatRequest.class, name = "Room#sendChat"),
+        @JsonSubTypes.Type(value = WebSocketHistoryRequest.class, name = "Room#history"),
+        @JsonSubTypes.Type(value = WebSocketSubscribeDirectoryRequest.class, name = "Room#subscribeDirectory"),
+        @JsonSubTypes.Type(value = WebSocketUnsubscribeDirectoryRequest.class, name = "Room#unsubscribeDirectory"),
+})
 public interface WebSocketRequest extends WebSocketMessage {
 
     public String getType();
@@ -0,0 +1,28 @@
+package com.example.chat.entity.websocket;
+
+public class WebSocketResumeSessionRequest extends AbstractWebSocketRequest {
+
+    private String resumeToken;
+    private Long lastSequence;
+
+    public WebSocketResumeSessionRequest() {
+    }
+
+    public WebSocketResumeSessionRequest(
+            String sessionId,
+            String resumeToken,
+            Long lastSequence) {
+        super("Auth#resume", sessionId);
+        this.resumeToken = resumeToken;
+        this.lastSequence = lastSequence;
+    }
+
+    public String getResumeToken() {
+        return this.resumeToken;
+    }
+
+    public Long getLastSequence() {
+        return this.lastSequence;
+    }
+
+}
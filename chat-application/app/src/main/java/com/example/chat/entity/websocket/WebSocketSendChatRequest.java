@@ -0,0 +1,30 @@
+package com.example.chat.entity.websocket;
+
+import java.util.UUID;
+
+public class WebSocketSendChatRequest extends AbstractWebSocketRequest {
+
+    private UUID roomId;
+    private String content;
+
+    public WebSocketSendChatRequest() {
+    }
+
+    public WebSocketSendChatRequest(
+            String sessionId,
+            UUID roomId,
+            String content) {
+        super("Room#sendChat", sessionId);
+        this.roomId = roomId;
+        this.content = content;
+    }
+
+    public UUID getRoomId() {
+        return this.roomId;
+    }
+
+    public String getContent() {
+        return this.content;
+    }
+
+}
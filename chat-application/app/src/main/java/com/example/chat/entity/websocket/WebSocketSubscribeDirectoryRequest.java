@@ -0,0 +1,12 @@
+package com.example.chat.entity.websocket;
+
+public class WebSocketSubscribeDirectoryRequest extends AbstractWebSocketRequest {
+
+    public WebSocketSubscribeDirectoryRequest() {
+    }
+
+    public WebSocketSubscribeDirectoryRequest(String sessionId) {
+        super("Room#subscribeDirectory", sessionId);
+    }
+
+}
@@ -0,0 +1,8 @@
+package com.example.chat.entity.websocket;
+
+public class WebSocketUnknownRequest extends AbstractWebSocketRequest {
+
+    public WebSocketUnknownRequest() {
+    }
+
+}
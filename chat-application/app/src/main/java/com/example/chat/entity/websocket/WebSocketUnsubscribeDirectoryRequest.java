@@ -0,0 +1,12 @@
+package com.example.chat.entity.websocket;
+
+public class WebSocketUnsubscribeDirectoryRequest extends AbstractWebSocketRequest {
+
+    public WebSocketUnsubscribeDirectoryRequest() {
+    }
+
+    public WebSocketUnsubscribeDirectoryRequest(String sessionId) {
+        super("Room#unsubscribeDirectory", sessionId);
+    }
+
+}
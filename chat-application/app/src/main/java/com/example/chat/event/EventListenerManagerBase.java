@@ -1,6 +1,8 @@
 package com.example.chat.event;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class EventListenerManagerBase<L extends EventListener>
@@ -8,25 +10,51 @@ public abstract class EventListenerManagerBase<L extends EventListener>
 
     protected final List<EventListener> listeners;
 
+    // Immutable per-type listener lists, rebuilt whenever the listeners change so that
+    // dispatching an event only reads a cached list.
+    private final Map<Class<?>, List<?>> listenersByType;
+
     protected EventListenerManagerBase() {
         this.listeners = new CopyOnWriteArrayList<>();
+        this.listenersByType = new ConcurrentHashMap<>();
     }
 
     @Override
-    public void addListener(EventListener listener) {
+    public synchronized void addListener(EventListener listener) {
         this.listeners.add(listener);
+        rebuildListenersByType();
     }
 
     @Override
-    public void removeListener(EventListener listener) {
+    public synchronized void removeListener(EventListener listener) {
         this.listeners.remove(listener);
+        rebuildListenersByType();
+    }
+
+    protected synchronized void removeAllListeners() {
+        this.listeners.clear();
+        rebuildListenersByType();
     }
 
+    @SuppressWarnings("unchecked")
     protected <M extends L> List<M> getListeners(Class<M> listenerClass) {
+        List<?> cached = this.listenersByType.get(listenerClass);
+        if (cached == null) {
+            synchronized (this) {
+                cached = this.listenersByType.computeIfAbsent(listenerClass, this::collectListeners);
+            }
+        }
+        return (List<M>) cached;
+    }
+
+    private List<?> collectListeners(Class<?> listenerClass) {
         return this.listeners.stream()
                 .filter(listenerClass::isInstance)
-                .map(listenerClass::cast)
                 .toList();
     }
 
+    private void rebuildListenersByType() {
+        this.listenersByType.replaceAll((listenerClass, cached) -> collectListeners(listenerClass));
+    }
+
 }
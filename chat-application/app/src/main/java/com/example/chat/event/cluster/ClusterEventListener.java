@@ -0,0 +1,7 @@
+package com.example.chat.event.cluster;
+
+import com.example.chat.event.EventListener;
+
+public interface ClusterEventListener extends EventListener {
+
+}
@@ -0,0 +1,7 @@
+package com.example.chat.event.cluster;
+
+public interface ClusterMessageListener extends ClusterEventListener {
+
+    public void onClusterMessage(String nodeId, byte[] payload) throws Exception;
+
+}
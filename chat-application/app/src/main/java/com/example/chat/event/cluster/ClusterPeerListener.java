@@ -0,0 +1,9 @@
+package com.example.chat.event.cluster;
+
+public interface ClusterPeerListener extends ClusterEventListener {
+
+    public void onPeerConnected(String nodeId) throws Exception;
+
+    public void onPeerDisconnected(String nodeId) throws Exception;
+
+}
@@ -0,0 +1,10 @@
+package com.example.chat.event.websocket;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+public interface WebSocketBinaryMessageReceiveListener extends WebSocketEventListener {
+
+    public void onBinaryMessageReceive(WebSocketSession session, BinaryMessage message) throws Exception;
+
+}
@@ -0,0 +1,11 @@
+package com.example.chat.event.websocket;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+public interface WebSocketSessionDetachListener extends WebSocketEventListener {
+
+    // Returns true to keep the session for a later resumption instead of removing it.
+    public boolean onSessionDetach(WebSocketSession session, CloseStatus closeStatus) throws Exception;
+
+}
@@ -1,12 +1,15 @@
 package com.example.chat.repository;
 
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.example.chat.entity.SessionContext;
+
 public abstract class AbstractSessionBasedRepository<T> implements SessionBasedRepository<T> {
 
     protected final SessionRepository sessionRepository;
@@ -27,22 +30,38 @@ public abstract class AbstractSessionBasedRepository<T> implements SessionBasedR
         return this.sessionRepository;
     }
 
+    @Override
+    public long getCount() {
+        return this.sessionRepository
+                .getAllContexts()
+                .stream()
+                .map(this::findEntityBasedOnSession)
+                .filter(Objects::nonNull)
+                .count();
+    }
+
+    @Override
+    public List<T> getAllEntities() {
+        return this.sessionRepository
+                .getAllContexts()
+                .stream()
+                .map(this::findEntityBasedOnSession)
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
     @Override
     public boolean containsEntityByKey(String sessionId) {
-        if (warnSessionOmission(sessionId)) {
-            return false;
-        }
-        return containsEntityByKeyBasedOnSession(sessionId);
+        return findContext(sessionId)
+                .map(this::findEntityBasedOnSession)
+                .isPresent();
     }
 
     @Override
     public Optional<T> findEntityByKey(String sessionId) {
-        if (warnSessionOmission(sessionId)) {
-            return Optional.empty();
-        }
-        Optional<T> entity = findEntityByKeyBasedOnSession(sessionId);
+        Optional<T> entity = findContext(sessionId).map(this::findEntityBasedOnSession);
         if (entity.isPresent()) {
-            getLogger().info("Found {} by session ID: {}", this.entityName, sessionId);
+            getLogger().debug("Found {} by session ID: {}", this.entityName, sessionId);
         }
         return entity;
     }
@@ -50,10 +69,11 @@ public abstract class AbstractSessionBasedRepository<T> implements SessionBasedR
     @Override
     public void addEntity(T entity) {
         String sessionId = this.sessionIdExtractor.apply(entity);
-        if (warnSessionOmission(sessionId)) {
+        Optional<SessionContext> context = findContext(sessionId);
+        if (context.isEmpty()) {
             return;
         }
-        if (addEntityBasedOnSession(entity)) {
+        if (addEntityBasedOnSession(context.get(), entity)) {
             getLogger().info("Stored {} with session ID: {}", this.entityName, sessionId);
         }
     }
@@ -66,35 +86,31 @@ public abstract class AbstractSessionBasedRepository<T> implements SessionBasedR
 
     @Override
     public void removeEntityByKey(String key) {
-        if (warnSessionOmission(key)) {
+        Optional<SessionContext> context = findContext(key);
+        if (context.isEmpty()) {
             return;
         }
-        if (removeEntityByKeyBasedOnSession(key)) {
+        if (removeEntityBasedOnSession(context.get())) {
             getLogger().info("Removed {} with session ID: {}", this.entityName, key);
         }
     }
 
-    @Override
-    public abstract List<T> getAllEntities();
-
-    protected abstract boolean containsEntityByKeyBasedOnSession(String sessionId);
-
-    protected abstract Optional<T> findEntityByKeyBasedOnSession(String sessionId);
+    protected abstract T findEntityBasedOnSession(SessionContext context);
 
-    protected abstract boolean addEntityBasedOnSession(T entity);
+    protected abstract boolean addEntityBasedOnSession(SessionContext context, T entity);
 
-    protected abstract boolean removeEntityByKeyBasedOnSession(String sessionId);
+    protected abstract boolean removeEntityBasedOnSession(SessionContext context);
 
     protected Logger getLogger() {
         return LogManager.getLogger(this.getClass());
     }
 
-    private boolean warnSessionOmission(String sessionId) {
-        boolean isSessionOmitted = !this.sessionRepository.containsEntityByKey(sessionId);
-        if (isSessionOmitted) {
+    protected Optional<SessionContext> findContext(String sessionId) {
+        Optional<SessionContext> context = this.sessionRepository.findContextByKey(sessionId);
+        if (context.isEmpty()) {
             getLogger().warn("{} requires session with ID: {}", this.entityName, sessionId);
         }
-        return isSessionOmitted;
+        return context;
     }
 
 }
@@ -0,0 +1,17 @@
+package com.example.chat.repository;
+
+import java.util.UUID;
+
+import com.example.chat.entity.ChatLogPage;
+
+public interface ChatLogRepository {
+
+    // Returns the sequence number of the appended frame, or -1 if it was not stored.
+    public long append(UUID roomId, byte[] frame);
+
+    // Up to limit frames with a sequence number below the given one, oldest first.
+    public ChatLogPage readBefore(UUID roomId, long beforeSequence, int limit);
+
+    public void removeLog(UUID roomId);
+
+}
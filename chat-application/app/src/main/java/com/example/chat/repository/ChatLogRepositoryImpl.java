@@ -0,0 +1,475 @@
+package com.example.chat.repository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Repository;
+
+import com.example.chat.entity.ChatLogPage;
+
+@Repository
+public class ChatLogRepositoryImpl implements ChatLogRepository, DisposableBean {
+
+    private static final Logger logger = LogManager.getLogger(ChatLogRepositoryImpl.class);
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Every record carries its length both before and after the payload, so the log can be
+    // scanned backwards from the write position.
+    private static final int RECORD_OVERHEAD = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long retentionMillis;
+    private final long sweepInterval;
+    private final int maxOpenLogs;
+    private final long idleTimeout;
+    // Every open log keeps its segments mapped, so logs of rooms that went quiet are closed
+    // and loaded again on their next use.
+    private final Map<UUID, RoomChatLog> logs;
+    // Rooms whose log was removed, with the time of removal. A late append for one of them
+    // is rejected rather than starting a new log.
+    private final Map<UUID, Long> removedRooms;
+    private final ScheduledExecutorService executorService;
+    private final AtomicBoolean evictionScheduled;
+    private volatile boolean closed;
+
+    public ChatLogRepositoryImpl(
+            @Value("${chat-log.directory:data/chat-log}") String directory,
+            @Value("${chat-log.segment-size:1048576}") int segmentSize,
+            @Value("${chat-log.max-segments:8}") int maxSegments,
+            @Value("${chat-log.retention-hours:168}") long retentionHours,
+            @Value("${chat-log.sweep-interval:60000}") long sweepInterval,
+            @Value("${chat-log.max-open-logs:1024}") int maxOpenLogs,
+            @Value("${chat-log.idle-timeout:600000}") long idleTimeout) {
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.retentionMillis = TimeUnit.HOURS.toMillis(retentionHours);
+        this.sweepInterval = sweepInterval;
+        this.maxOpenLogs = Math.max(1, maxOpenLogs);
+        this.idleTimeout = idleTimeout;
+        this.logs = new ConcurrentHashMap<>();
+        this.removedRooms = new ConcurrentHashMap<>();
+        this.executorService = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("Chat Log Retention"));
+        this.evictionScheduled = new AtomicBoolean();
+        this.executorService.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long append(UUID roomId, byte[] payload) {
+        if (payload.length == 0 || payload.length + RECORD_OVERHEAD > this.segmentSize) {
+            logger.warn("Chat frame of {} bytes does not fit in a log segment of room {}", payload.length, roomId);
+            return -1;
+        }
+        while (true) {
+            RoomChatLog log = getLog(roomId);
+            if (log == null) {
+                return -1;
+            }
+            try {
+                long sequence = log.append(payload);
+                // A log closed for being idle is loaded again, a removed one is not found.
+                if (sequence >= 0) {
+                    return sequence;
+                }
+            } catch (IOException | UncheckedIOException e) {
+                logger.error("Failed to append to the chat log of room {}", roomId, e);
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public ChatLogPage readBefore(UUID roomId, long beforeSequence, int limit) {
+        while (true) {
+            RoomChatLog log = getLog(roomId);
+            if (log == null) {
+                return new ChatLogPage(List.of(), beforeSequence, false);
+            }
+            try {
+                ChatLogPage page = log.readBefore(beforeSequence, limit);
+                if (page != null) {
+                    return page;
+                }
+            } catch (UncheckedIOException e) {
+                logger.error("Failed to read the chat log of room {}", roomId, e);
+                return new ChatLogPage(List.of(), beforeSequence, false);
+            }
+        }
+    }
+
+    @Override
+    public void removeLog(UUID roomId) {
+        // Marked before the log is dropped, so an append racing with the removal either
+        // reaches the closed log or finds the mark.
+        this.removedRooms.put(roomId, System.currentTimeMillis());
+        RoomChatLog log = this.logs.remove(roomId);
+        if (log != null) {
+            log.close();
+        }
+        deleteDirectory(this.directory.resolve(roomId.toString()), Long.MAX_VALUE);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.closed = true;
+        this.executorService.shutdown();
+        this.logs.values().forEach(RoomChatLog::close);
+        this.logs.clear();
+    }
+
+    // Null when the room's log was removed. The files are loaded by the log itself, outside
+    // the map, so a slow disk only holds up the room being loaded.
+    private RoomChatLog getLog(UUID roomId) {
+        if (this.closed) {
+            return null;
+        }
+        RoomChatLog log = this.logs.computeIfAbsent(
+                roomId,
+                key -> this.removedRooms.containsKey(key) ? null : new RoomChatLog(key));
+        if (this.logs.size() > this.maxOpenLogs && this.evictionScheduled.compareAndSet(false, true)) {
+            this.executorService.execute(() -> {
+                this.evictionScheduled.set(false);
+                closeIdleLogs();
+            });
+        }
+        return log;
+    }
+
+    // Closes the logs that have not been used within the idle timeout, and the least
+    // recently used ones beyond the open log limit.
+    private void closeIdleLogs() {
+        long idleCutoff = System.currentTimeMillis() - this.idleTimeout;
+        // The access times are taken once, since they keep changing while the logs are sorted.
+        List<Map.Entry<RoomChatLog, Long>> entries = new ArrayList<>(this.logs.size());
+        for (RoomChatLog log : this.logs.values()) {
+            entries.add(Map.entry(log, log.lastAccessTime));
+        }
+        entries.sort(Map.Entry.comparingByValue());
+        int excess = entries.size() - this.maxOpenLogs;
+        for (Map.Entry<RoomChatLog, Long> entry : entries) {
+            if (excess <= 0 && entry.getValue() >= idleCutoff) {
+                break;
+            }
+            RoomChatLog log = entry.getKey();
+            if (this.logs.remove(log.roomId, log)) {
+                log.close();
+                excess--;
+            }
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        // An append racing with a removal is long over by the next sweep.
+        this.removedRooms.values().removeIf(removedTime -> removedTime < now - this.sweepInterval);
+        closeIdleLogs();
+        long cutoff = now - this.retentionMillis;
+        for (RoomChatLog log : this.logs.values()) {
+            log.expire(cutoff);
+        }
+        // Logs that are not loaded, such as those of idle rooms or rooms of an earlier run,
+        // only age out.
+        if (!Files.isDirectory(this.directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> roomDirectories = Files.newDirectoryStream(this.directory)) {
+            for (Path roomDirectory : roomDirectories) {
+                UUID roomId;
+                try {
+                    roomId = UUID.fromString(roomDirectory.getFileName().toString());
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                if (!this.logs.containsKey(roomId)) {
+                    deleteDirectory(roomDirectory, cutoff);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to sweep chat log directory {}", this.directory, e);
+        }
+    }
+
+    private static void deleteDirectory(Path roomDirectory, long cutoff) {
+        if (!Files.isDirectory(roomDirectory)) {
+            return;
+        }
+        try {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(roomDirectory)) {
+                for (Path file : files) {
+                    if (Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(roomDirectory)) {
+                if (files.iterator().hasNext()) {
+                    return;
+                }
+            }
+            Files.deleteIfExists(roomDirectory);
+        } catch (IOException e) {
+            logger.warn("Failed to delete chat log directory {}", roomDirectory, e);
+        }
+    }
+
+    private static String getSegmentFileName(long baseSequence) {
+        return String.format("%020d%s", baseSequence, SEGMENT_SUFFIX);
+    }
+
+    private class RoomChatLog {
+
+        private final UUID roomId;
+        private final Path path;
+
+        // Guarded by this log. Segments are ordered from the oldest to the active one.
+        private final Deque<Segment> segments;
+        private long nextSequence;
+        private boolean loaded;
+        private boolean closed;
+
+        private volatile long lastAccessTime;
+
+        private RoomChatLog(UUID roomId) {
+            this.roomId = roomId;
+            this.path = directory.resolve(roomId.toString());
+            this.segments = new ArrayDeque<>();
+            this.lastAccessTime = System.currentTimeMillis();
+        }
+
+        // Returns -1 once the log is closed.
+        public synchronized long append(byte[] payload) throws IOException {
+            if (this.closed) {
+                return -1;
+            }
+            ensureLoaded();
+            this.lastAccessTime = System.currentTimeMillis();
+            Segment segment = this.segments.peekLast();
+            if (segment == null || !segment.hasRoom(payload.length)) {
+                segment = roll();
+            }
+            segment.write(payload);
+            return this.nextSequence++;
+        }
+
+        // Returns null once the log is closed.
+        public synchronized ChatLogPage readBefore(long beforeSequence, int limit) {
+            if (this.closed) {
+                return null;
+            }
+            ensureLoaded();
+            this.lastAccessTime = System.currentTimeMillis();
+            long end = Math.min(beforeSequence, this.nextSequence);
+            Deque<ByteBuffer> records = new ArrayDeque<>();
+            long firstSequence = end;
+            Iterator<Segment> iterator = this.segments.descendingIterator();
+            while (iterator.hasNext() && records.size() < limit) {
+                Segment segment = iterator.next();
+                if (segment.baseSequence >= end) {
+                    continue;
+                }
+                int position = segment.writePosition;
+                long sequence = segment.baseSequence + segment.count;
+                while (position > 0 && records.size() < limit) {
+                    int length = segment.buffer.getInt(position - Integer.BYTES);
+                    int start = position - RECORD_OVERHEAD - length;
+                    sequence--;
+                    if (sequence < end) {
+                        // A view of the mapped segment, so nothing is copied onto the heap.
+                        records.addFirst(segment.buffer
+                                .slice(start + Integer.BYTES, length)
+                                .asReadOnlyBuffer());
+                        firstSequence = sequence;
+                    }
+                    position = start;
+                }
+            }
+            Segment oldest = this.segments.peekFirst();
+            boolean hasMore = oldest != null && firstSequence > oldest.baseSequence;
+            return new ChatLogPage(new ArrayList<>(records), firstSequence, hasMore);
+        }
+
+        public synchronized void expire(long cutoff) {
+            // The active segment is kept, so the sequence numbers survive an idle period.
+            while (this.segments.size() > 1 && this.segments.peekFirst().lastWriteTime < cutoff) {
+                delete(this.segments.pollFirst());
+            }
+        }
+
+        public synchronized void close() {
+            this.closed = true;
+            this.segments.forEach(segment -> segment.buffer.force());
+            // The mappings go away once the pages handed out by earlier reads are dropped.
+            this.segments.clear();
+        }
+
+        private void ensureLoaded() {
+            if (this.loaded) {
+                return;
+            }
+            try {
+                load();
+            } catch (IOException e) {
+                this.segments.clear();
+                throw new UncheckedIOException(e);
+            }
+            this.loaded = true;
+        }
+
+        private void load() throws IOException {
+            if (!Files.isDirectory(this.path)) {
+                return;
+            }
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.path, "*" + SEGMENT_SUFFIX)) {
+                stream.forEach(files::add);
+            }
+            files.sort(null);
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                long baseSequence;
+                try {
+                    baseSequence = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                this.segments.addLast(Segment.open(file, baseSequence, (int) Files.size(file)));
+            }
+            Segment last = this.segments.peekLast();
+            if (last != null) {
+                this.nextSequence = last.baseSequence + last.count;
+                logger.info("Loaded chat log of room {} with {} segments up to sequence {}",
+                        this.roomId,
+                        this.segments.size(),
+                        this.nextSequence);
+            }
+        }
+
+        private Segment roll() throws IOException {
+            Files.createDirectories(this.path);
+            Segment previous = this.segments.peekLast();
+            if (previous != null && previous.count == 0) {
+                // An empty segment left behind by a crash has the same name as the new one.
+                this.segments.pollLast();
+            } else if (previous != null) {
+                previous.buffer.force();
+            }
+            Path file = this.path.resolve(getSegmentFileName(this.nextSequence));
+            Segment segment = Segment.open(file, this.nextSequence, segmentSize);
+            this.segments.addLast(segment);
+            while (this.segments.size() > maxSegments) {
+                delete(this.segments.pollFirst());
+            }
+            return segment;
+        }
+
+        private void delete(Segment segment) {
+            // Pages that are still referenced stay readable after the file is gone.
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                logger.warn("Failed to delete chat log segment {}", segment.path, e);
+            }
+        }
+
+    }
+
+    private static class Segment {
+
+        private final Path path;
+        private final long baseSequence;
+        private final MappedByteBuffer buffer;
+
+        // Guarded by the owning log.
+        private int writePosition;
+        private long count;
+        private long lastWriteTime;
+
+        private Segment(Path path, long baseSequence, MappedByteBuffer buffer, long lastWriteTime) {
+            this.path = path;
+            this.baseSequence = baseSequence;
+            this.buffer = buffer;
+            this.lastWriteTime = lastWriteTime;
+        }
+
+        public static Segment open(Path path, long baseSequence, int size) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(
+                    path,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            Segment segment = new Segment(
+                    path,
+                    baseSequence,
+                    buffer,
+                    Files.getLastModifiedTime(path).toMillis());
+            segment.recover();
+            return segment;
+        }
+
+        public boolean hasRoom(int length) {
+            return this.writePosition + RECORD_OVERHEAD + length <= this.buffer.capacity();
+        }
+
+        public void write(byte[] payload) {
+            int position = this.writePosition;
+            // The leading length is written last, so a torn record ends the log on recovery.
+            this.buffer.put(position + Integer.BYTES, payload);
+            this.buffer.putInt(position + Integer.BYTES + payload.length, payload.length);
+            this.buffer.putInt(position, payload.length);
+            this.writePosition = position + RECORD_OVERHEAD + payload.length;
+            this.count++;
+            this.lastWriteTime = System.currentTimeMillis();
+        }
+
+        private void recover() {
+            int position = 0;
+            int capacity = this.buffer.capacity();
+            while (position + RECORD_OVERHEAD <= capacity) {
+                int length = this.buffer.getInt(position);
+                if (length <= 0 || position + RECORD_OVERHEAD + length > capacity) {
+                    break;
+                }
+                if (this.buffer.getInt(position + Integer.BYTES + length) != length) {
+                    break;
+                }
+                position += RECORD_OVERHEAD + length;
+                this.count++;
+            }
+            this.writePosition = position;
+        }
+
+    }
+
+}
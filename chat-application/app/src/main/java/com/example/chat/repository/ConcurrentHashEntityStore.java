@@ -0,0 +1,55 @@
+package com.example.chat.repository;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+public class ConcurrentHashEntityStore<K, V> implements EntityStore<K, V> {
+
+    private final ConcurrentMap<K, V> entities;
+
+    public ConcurrentHashEntityStore(int initialCapacity) {
+        this.entities = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    @Override
+    public long size() {
+        return this.entities.size();
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return this.entities.containsKey(key);
+    }
+
+    @Override
+    public V get(K key) {
+        return this.entities.get(key);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return this.entities.putIfAbsent(key, value);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return this.entities.replace(key, value);
+    }
+
+    @Override
+    public V remove(K key) {
+        return this.entities.remove(key);
+    }
+
+    @Override
+    public boolean remove(K key, V value) {
+        return this.entities.remove(key, value);
+    }
+
+    @Override
+    public Stream<V> values() {
+        return this.entities.values().stream();
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.example.chat.repository;
+
+import java.util.stream.Stream;
+
+public interface EntityStore<K, V> {
+
+    public long size();
+
+    public boolean containsKey(K key);
+
+    public V get(K key);
+
+    public V putIfAbsent(K key, V value);
+
+    public V replace(K key, V value);
+
+    public V remove(K key);
+
+    public boolean remove(K key, V value);
+
+    public Stream<V> values();
+
+}
@@ -0,0 +1,29 @@
+package com.example.chat.repository;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Component
+public class EntityStoreFactory {
+
+    private final EntityStoreType type;
+    private final int initialCapacity;
+    private final int stripeCount;
+
+    public EntityStoreFactory(
+            @Value("${repository.store.type:CONCURRENT_HASH}") EntityStoreType type,
+            @Value("${repository.store.initial-capacity:1024}") int initialCapacity,
+            @Value("${repository.store.stripes:16}") int stripeCount) {
+        this.type = type;
+        this.initialCapacity = initialCapacity;
+        this.stripeCount = stripeCount;
+    }
+
+    public <K, V> EntityStore<K, V> createStore() {
+        return switch (this.type) {
+            case CONCURRENT_HASH -> new ConcurrentHashEntityStore<>(this.initialCapacity);
+            case STRIPED -> new StripedEntityStore<>(this.stripeCount, this.initialCapacity);
+        };
+    }
+
+}
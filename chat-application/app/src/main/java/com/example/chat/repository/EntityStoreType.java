@@ -0,0 +1,6 @@
+package com.example.chat.repository;
+
+public enum EntityStoreType {
+    CONCURRENT_HASH,
+    STRIPED,
+}
@@ -0,0 +1,170 @@
+package com.example.chat.repository;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.chat.entity.MessageRing;
+
+// Carves ring buffers out of direct chunks that are allocated as rooms need them, up to
+// a fixed limit. Released slices go to a free list by size and are handed out again, so
+// room churn does not allocate more direct memory.
+@Component
+public class RecentMessageArena {
+
+    private static final Logger logger = LogManager.getLogger(RecentMessageArena.class);
+
+    private static final int MIN_SLICE_SIZE = 4096;
+
+    private final LongAdder usedBytes;
+    // Free slices by capacity. Capacities are multiples of the minimum slice size, and a
+    // larger slice is split to serve a smaller ring.
+    private final NavigableMap<Integer, Deque<ByteBuffer>> freeSlices;
+
+    // Guarded by this arena.
+    private ByteBuffer chunk;
+    private int chunkPosition;
+    private long allocatedBytes;
+    private long reservedBytes;
+    private boolean exhausted;
+
+    @Value("${room.recent-messages.default-count:50}")
+    private int defaultFrameCount;
+
+    @Value("${room.recent-messages.max-count:500}")
+    private int maxFrameCount;
+
+    @Value("${room.recent-messages.bytes-per-frame:512}")
+    private int bytesPerFrame;
+
+    @Value("${room.recent-messages.arena-limit:268435456}")
+    private long arenaLimit;
+
+    @Value("${room.recent-messages.arena-chunk-size:4194304}")
+    private int chunkSize;
+
+    public RecentMessageArena() {
+        this.usedBytes = new LongAdder();
+        this.freeSlices = new TreeMap<>();
+    }
+
+    // Direct memory taken by the chunks so far.
+    public synchronized long getAllocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    // Bytes of the chunks held by rings that are in use.
+    public synchronized long getReservedBytes() {
+        return this.reservedBytes;
+    }
+
+    public long getUsedBytes() {
+        return this.usedBytes.sum();
+    }
+
+    // A count of zero or less asks for the default ring size.
+    public MessageRing allocate(int frameCount) {
+        int frames = frameCount > 0 ? Math.min(frameCount, this.maxFrameCount) : this.defaultFrameCount;
+        if (frames <= 0) {
+            return MessageRing.EMPTY;
+        }
+        int capacity = sliceSize(frames * this.bytesPerFrame);
+        ByteBuffer slice = takeSlice(capacity);
+        if (slice == null) {
+            return MessageRing.EMPTY;
+        }
+        return new MessageRing(slice, frames, this.usedBytes);
+    }
+
+    public void release(MessageRing ring) {
+        ByteBuffer slice = ring.close();
+        if (slice != null) {
+            returnSlice(slice);
+        }
+    }
+
+    private synchronized ByteBuffer takeSlice(int capacity) {
+        ByteBuffer slice = takeFreeSlice(capacity);
+        if (slice == null) {
+            slice = carveSlice(capacity);
+        }
+        if (slice == null) {
+            // Logged once until a ring is released, not for every room created meanwhile.
+            if (!this.exhausted) {
+                this.exhausted = true;
+                logger.warn("Recent message arena is full ({} of {} bytes reserved), new rooms keep no backlog",
+                        this.reservedBytes,
+                        this.arenaLimit);
+            }
+            return null;
+        }
+        this.reservedBytes += slice.capacity();
+        return slice;
+    }
+
+    private ByteBuffer takeFreeSlice(int capacity) {
+        for (Map.Entry<Integer, Deque<ByteBuffer>> entry : this.freeSlices.tailMap(capacity, true).entrySet()) {
+            ByteBuffer slice = entry.getValue().pollFirst();
+            if (slice != null) {
+                if (slice.capacity() > capacity) {
+                    addFreeSlice(slice.slice(capacity, slice.capacity() - capacity));
+                    slice = slice.slice(0, capacity);
+                }
+                return slice;
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer carveSlice(int capacity) {
+        if (this.chunk == null || capacity > this.chunk.capacity() - this.chunkPosition) {
+            long available = this.arenaLimit - this.allocatedBytes;
+            int size = (int) Math.min(Math.max(this.chunkSize, capacity), available) & -MIN_SLICE_SIZE;
+            if (size < capacity) {
+                return null;
+            }
+            // What is left of the previous chunk still serves smaller rings.
+            if (this.chunk != null && this.chunkPosition < this.chunk.capacity()) {
+                addFreeSlice(this.chunk.slice(this.chunkPosition, this.chunk.capacity() - this.chunkPosition));
+            }
+            this.chunk = ByteBuffer.allocateDirect(size);
+            this.chunkPosition = 0;
+            this.allocatedBytes += size;
+            logger.debug("Recent message arena allocated a chunk of {} bytes ({} bytes in total)",
+                    size,
+                    this.allocatedBytes);
+        }
+        ByteBuffer slice = this.chunk.slice(this.chunkPosition, capacity);
+        this.chunkPosition += capacity;
+        return slice;
+    }
+
+    private synchronized void returnSlice(ByteBuffer slice) {
+        addFreeSlice(slice);
+        this.reservedBytes -= slice.capacity();
+        this.exhausted = false;
+    }
+
+    private void addFreeSlice(ByteBuffer slice) {
+        slice.clear();
+        this.freeSlices
+                .computeIfAbsent(slice.capacity(), key -> new ArrayDeque<>())
+                .offerFirst(slice);
+    }
+
+    // Rounds up to a whole number of minimum slices, which keeps every free remainder
+    // usable by some ring.
+    private static int sliceSize(int bytes) {
+        return Math.max(MIN_SLICE_SIZE, (bytes + MIN_SLICE_SIZE - 1) & -MIN_SLICE_SIZE);
+    }
+
+}
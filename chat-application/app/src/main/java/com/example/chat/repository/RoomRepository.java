@@ -1,12 +1,32 @@
 package com.example.chat.repository;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 import com.example.chat.entity.Room;
+import com.example.chat.entity.RoomDirectoryChange;
 
 public interface RoomRepository extends EntityRepository<Room, UUID> {
 
     public Optional<Room> findEntityByName(String name);
 
+    // A recent message count of zero or less gives the room the default backlog size.
+    public default Optional<Room> createIfAbsent(String name, int recentMessageCount) {
+        return createIfAbsent(name, recentMessageCount, room -> {});
+    }
+
+    // The callback runs once the name is claimed and before the room can be found by its
+    // ID, so whatever it records comes ahead of anything done with the room.
+    public Optional<Room> createIfAbsent(String name, int recentMessageCount, Consumer<Room> beforePublish);
+
+    public long getDirectoryVersion();
+
+    // Rooms ordered by name, starting after the given name when it is not null.
+    public List<Room> findEntitiesByNamePrefix(String prefix, String afterName, int limit);
+
+    // Empty when the changes since the given version are no longer retained.
+    public Optional<List<RoomDirectoryChange>> findChangesSince(long version);
+
 }
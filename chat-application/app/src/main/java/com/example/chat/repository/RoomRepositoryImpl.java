@@ -1,22 +1,45 @@
 package com.example.chat.repository;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 import com.example.chat.entity.Room;
+import com.example.chat.entity.RoomDirectoryChange;
 
 @Repository
 public class RoomRepositoryImpl implements RoomRepository {
 
-    private final Map<UUID, Room> rooms;
+    private final EntityStore<UUID, Room> rooms;
+    private final EntityStore<String, Room> roomsByName;
+    private final NavigableMap<String, Room> sortedRooms;
+    private final Deque<RoomDirectoryChange> changeLog;
+    private final int changeLogSize;
+    private final RecentMessageArena recentMessageArena;
 
-    public RoomRepositoryImpl() {
-        this.rooms = new ConcurrentSkipListMap<>();
+    // Written under the change log lock together with the sorted index.
+    private volatile long directoryVersion;
+
+    public RoomRepositoryImpl(
+            EntityStoreFactory entityStoreFactory,
+            RecentMessageArena recentMessageArena,
+            @Value("${repository.room-directory.change-log-size:1024}") int changeLogSize) {
+        this.rooms = entityStoreFactory.createStore();
+        this.roomsByName = entityStoreFactory.createStore();
+        this.sortedRooms = new ConcurrentSkipListMap<>();
+        this.changeLog = new ArrayDeque<>();
+        this.changeLogSize = changeLogSize;
+        this.recentMessageArena = recentMessageArena;
     }
 
     @Override
@@ -28,7 +51,6 @@ public class RoomRepositoryImpl implements RoomRepository {
     public List<Room> getAllEntities() {
         return this.rooms
                 .values()
-                .stream()
                 .toList();
     }
 
@@ -44,10 +66,16 @@ public class RoomRepositoryImpl implements RoomRepository {
 
     @Override
     public void addEntity(Room entity) {
-        if (this.rooms.containsKey(entity.getId())) {
+        // The name index is claimed first, so it decides which of two rooms with the same
+        // name is stored.
+        if (this.roomsByName.putIfAbsent(entity.getName(), entity) != null) {
+            return;
+        }
+        if (this.rooms.putIfAbsent(entity.getId(), entity) != null) {
+            this.roomsByName.remove(entity.getName(), entity);
             return;
         }
-        this.rooms.put(entity.getId(), entity);
+        recordChange(RoomDirectoryChange.Type.CREATED, entity);
     }
 
     @Override
@@ -57,19 +85,94 @@ public class RoomRepositoryImpl implements RoomRepository {
 
     @Override
     public void removeEntityByKey(UUID key) {
-        if (!this.rooms.containsKey(key)) {
+        Room room = this.rooms.remove(key);
+        if (room == null) {
             return;
         }
-        this.rooms.remove(key);
+        this.roomsByName.remove(room.getName(), room);
+        this.recentMessageArena.release(room.getRecentMessages());
+        recordChange(RoomDirectoryChange.Type.REMOVED, room);
     }
 
     @Override
     public Optional<Room> findEntityByName(String name) {
-        return this.rooms
-                .values()
-                .stream()
-                .filter(room -> room.getName().equals(name))
-                .findFirst();
+        return Optional.ofNullable(this.roomsByName.get(name));
+    }
+
+    @Override
+    public Optional<Room> createIfAbsent(String name, int recentMessageCount, Consumer<Room> beforePublish) {
+        if (this.roomsByName.containsKey(name)) {
+            return Optional.empty();
+        }
+        Room room = new Room(UUID.randomUUID(), name, this.recentMessageArena.allocate(recentMessageCount));
+        if (this.roomsByName.putIfAbsent(name, room) != null) {
+            this.recentMessageArena.release(room.getRecentMessages());
+            return Optional.empty();
+        }
+        beforePublish.accept(room);
+        this.rooms.putIfAbsent(room.getId(), room);
+        recordChange(RoomDirectoryChange.Type.CREATED, room);
+        return Optional.of(room);
+    }
+
+    @Override
+    public long getDirectoryVersion() {
+        return this.directoryVersion;
+    }
+
+    @Override
+    public List<Room> findEntitiesByNamePrefix(String prefix, String afterName, int limit) {
+        String from = prefix != null ? prefix : "";
+        NavigableMap<String, Room> tail = afterName != null && afterName.compareTo(from) >= 0
+                ? this.sortedRooms.tailMap(afterName, false)
+                : this.sortedRooms.tailMap(from, true);
+        List<Room> page = new ArrayList<>(Math.min(limit, 64));
+        for (Map.Entry<String, Room> entry : tail.entrySet()) {
+            if (page.size() >= limit || !entry.getKey().startsWith(from)) {
+                break;
+            }
+            page.add(entry.getValue());
+        }
+        return page;
+    }
+
+    @Override
+    public Optional<List<RoomDirectoryChange>> findChangesSince(long version) {
+        synchronized (this.changeLog) {
+            if (version > this.directoryVersion) {
+                return Optional.empty();
+            }
+            if (version == this.directoryVersion) {
+                return Optional.of(List.of());
+            }
+            RoomDirectoryChange oldest = this.changeLog.peekFirst();
+            if (oldest == null || oldest.getVersion() > version + 1) {
+                return Optional.empty();
+            }
+            List<RoomDirectoryChange> changes = new ArrayList<>();
+            for (RoomDirectoryChange change : this.changeLog) {
+                if (change.getVersion() > version) {
+                    changes.add(change);
+                }
+            }
+            return Optional.of(changes);
+        }
+    }
+
+    private void recordChange(RoomDirectoryChange.Type type, Room room) {
+        synchronized (this.changeLog) {
+            long version = this.directoryVersion + 1;
+            if (type == RoomDirectoryChange.Type.CREATED) {
+                this.sortedRooms.put(room.getName(), room);
+            } else {
+                this.sortedRooms.remove(room.getName(), room);
+            }
+            this.changeLog.offerLast(new RoomDirectoryChange(version, type, room));
+            while (this.changeLog.size() > this.changeLogSize) {
+                this.changeLog.pollFirst();
+            }
+            this.directoryVersion = version;
+        }
     }
 
 }
@@ -1,6 +1,16 @@
 package com.example.chat.repository;
 
+import java.util.List;
+import java.util.Optional;
+
 import org.springframework.web.socket.WebSocketSession;
 
+import com.example.chat.entity.SessionContext;
+
 public interface SessionRepository extends EntityRepository<WebSocketSession, String> {
+
+    public Optional<SessionContext> findContextByKey(String sessionId);
+
+    public List<SessionContext> getAllContexts();
+
 }
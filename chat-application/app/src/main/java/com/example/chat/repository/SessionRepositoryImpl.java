@@ -1,60 +1,75 @@
 package com.example.chat.repository;
 
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.stereotype.Repository;
 import org.springframework.web.socket.WebSocketSession;
 
+import com.example.chat.entity.SessionContext;
+
 @Repository
 public final class SessionRepositoryImpl implements SessionRepository {
 
     private static final Logger logger = LogManager.getLogger(SessionRepositoryImpl.class);
 
-    private final Map<String, WebSocketSession> sessions;
+    private final EntityStore<String, SessionContext> contexts;
 
-    public SessionRepositoryImpl() {
-        this.sessions = new ConcurrentSkipListMap<>();
+    public SessionRepositoryImpl(EntityStoreFactory entityStoreFactory) {
+        this.contexts = entityStoreFactory.createStore();
     }
 
     @Override
     public long getCount() {
-        return this.sessions.size();
+        return this.contexts.size();
     }
 
     @Override
     public List<WebSocketSession> getAllEntities() {
-        return this.sessions
+        return this.contexts
                 .values()
-                .stream()
+                .map(SessionContext::getSession)
                 .toList();
     }
 
     @Override
     public boolean containsEntityByKey(String key) {
-        return this.sessions.containsKey(key);
+        return this.contexts.containsKey(key);
     }
 
     @Override
     public Optional<WebSocketSession> findEntityByKey(String key) {
-        WebSocketSession session = this.sessions.get(key);
-        if (session != null) {
-            logger.info("Found session with ID: {}", key);
+        return findContextByKey(key).map(SessionContext::getSession);
+    }
+
+    @Override
+    public Optional<SessionContext> findContextByKey(String sessionId) {
+        SessionContext context = this.contexts.get(sessionId);
+        if (context != null) {
+            logger.debug("Found session with ID: {}", sessionId);
         }
-        return Optional.ofNullable(session);
+        return Optional.ofNullable(context);
+    }
+
+    @Override
+    public List<SessionContext> getAllContexts() {
+        return this.contexts
+                .values()
+                .toList();
     }
 
     @Override
     public void addEntity(WebSocketSession entity) {
         String id = entity.getId();
-        if (this.sessions.containsKey(id)) {
+        SessionContext context = new SessionContext(entity);
+        if (this.contexts.putIfAbsent(id, context) != null) {
             return;
         }
-        this.sessions.put(id, entity);
+        // The attribute map is shared with the container session, so the receive path can
+        // reach the context without a repository lookup.
+        entity.getAttributes().put(SessionContext.ATTRIBUTE_NAME, context);
         logger.info("Stored session with ID: {}", id);
     }
 
@@ -66,10 +81,9 @@ public final class SessionRepositoryImpl implements SessionRepository {
 
     @Override
     public void removeEntityByKey(String key) {
-        if (!this.sessions.containsKey(key)) {
+        if (this.contexts.remove(key) == null) {
             return;
         }
-        this.sessions.remove(key);
         logger.info("Removed session with ID: {}", key);
     }
 
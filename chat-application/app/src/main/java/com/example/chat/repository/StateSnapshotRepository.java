@@ -0,0 +1,41 @@
+package com.example.chat.repository;
+
+import java.util.List;
+import java.util.UUID;
+
+import com.example.chat.entity.Room;
+import com.example.chat.entity.SessionContext;
+import com.example.chat.entity.StateSnapshot;
+import com.example.chat.entity.User;
+
+public interface StateSnapshotRepository {
+
+    public void recordRoomCreated(Room room);
+
+    public void recordRoomRemoved(UUID roomId);
+
+    public void recordMemberJoined(UUID roomId, String sessionId);
+
+    public void recordMemberLeft(UUID roomId, String sessionId);
+
+    // Only hashes of resume tokens are stored, so the files do not hand out sessions to
+    // whoever can read them.
+    public void recordUserAuthenticated(User user, String resumeTokenHash);
+
+    public void recordResumeTokenHash(String sessionId, String resumeTokenHash);
+
+    public void recordUserRemoved(String sessionId);
+
+    // Reads the latest snapshot with the journal written after it, and starts a new journal.
+    public StateSnapshot load();
+
+    public boolean hasChangesSinceSnapshot();
+
+    // Starts a new journal and returns the generation that the following snapshot covers.
+    public long rotateJournal();
+
+    public void writeSnapshot(long generation, List<SessionContext> contexts, List<Room> rooms);
+
+    public void flush();
+
+}
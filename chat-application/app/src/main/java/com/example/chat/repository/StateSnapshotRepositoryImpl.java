@@ -0,0 +1,476 @@
+package com.example.chat.repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+
+import com.example.chat.entity.Room;
+import com.example.chat.entity.SessionContext;
+import com.example.chat.entity.StateSnapshot;
+import com.example.chat.entity.User;
+
+@Repository
+public class StateSnapshotRepositoryImpl implements StateSnapshotRepository, DisposableBean {
+
+    private static final Logger logger = LogManager.getLogger(StateSnapshotRepositoryImpl.class);
+
+    private static final String SNAPSHOT_FILE_NAME = "snapshot.bin";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".bin";
+    private static final int SNAPSHOT_MAGIC = 0x43534E50;
+    private static final int SNAPSHOT_FORMAT_VERSION = 1;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte ROOM_CREATED = 1;
+    private static final byte ROOM_REMOVED = 2;
+    private static final byte MEMBER_JOINED = 3;
+    private static final byte MEMBER_LEFT = 4;
+    private static final byte USER_AUTHENTICATED = 5;
+    private static final byte RESUME_TOKEN_HASH = 6;
+    private static final byte USER_REMOVED = 7;
+
+    private final Path directory;
+    private final ByteArrayOutputStream recordBuffer;
+    private final DataOutputStream recordOutput;
+    private final CRC32 checksum;
+
+    // Guarded by this repository. Records are buffered and reach the file on flush, which
+    // is enough to survive a restart of the process.
+    private DataOutputStream journal;
+    private long generation;
+    private long pendingRecords;
+
+    public StateSnapshotRepositoryImpl(@Value("${state.directory:data/state}") String directory) {
+        this.directory = Paths.get(directory);
+        this.recordBuffer = new ByteArrayOutputStream(256);
+        this.recordOutput = new DataOutputStream(this.recordBuffer);
+        this.checksum = new CRC32();
+    }
+
+    @Override
+    public void recordRoomCreated(Room room) {
+        append(ROOM_CREATED, output -> {
+            writeUuid(output, room.getId());
+            output.writeUTF(room.getName());
+            output.writeInt(room.getRecentMessages().getMaxFrames());
+        });
+    }
+
+    @Override
+    public void recordRoomRemoved(UUID roomId) {
+        append(ROOM_REMOVED, output -> writeUuid(output, roomId));
+    }
+
+    @Override
+    public void recordMemberJoined(UUID roomId, String sessionId) {
+        append(MEMBER_JOINED, output -> {
+            writeUuid(output, roomId);
+            output.writeUTF(sessionId);
+        });
+    }
+
+    @Override
+    public void recordMemberLeft(UUID roomId, String sessionId) {
+        append(MEMBER_LEFT, output -> {
+            writeUuid(output, roomId);
+            output.writeUTF(sessionId);
+        });
+    }
+
+    @Override
+    public void recordUserAuthenticated(User user, String resumeTokenHash) {
+        append(USER_AUTHENTICATED, output -> {
+            output.writeUTF(user.getSessionId());
+            output.writeUTF(user.getName());
+            writeTime(output, user.getJoinedTime());
+            output.writeUTF(resumeTokenHash);
+        });
+    }
+
+    @Override
+    public void recordResumeTokenHash(String sessionId, String resumeTokenHash) {
+        append(RESUME_TOKEN_HASH, output -> {
+            output.writeUTF(sessionId);
+            output.writeUTF(resumeTokenHash);
+        });
+    }
+
+    @Override
+    public void recordUserRemoved(String sessionId) {
+        append(USER_REMOVED, output -> output.writeUTF(sessionId));
+    }
+
+    @Override
+    public synchronized StateSnapshot load() {
+        StateSnapshot snapshot = new StateSnapshot();
+        long firstGeneration = 0;
+        long nextGeneration = 0;
+        try {
+            Files.createDirectories(this.directory);
+            Path snapshotFile = this.directory.resolve(SNAPSHOT_FILE_NAME);
+            if (Files.exists(snapshotFile)) {
+                try {
+                    firstGeneration = readSnapshot(snapshotFile, snapshot);
+                    nextGeneration = firstGeneration;
+                } catch (IOException e) {
+                    // Whatever the remaining journals hold is still better than nothing.
+                    logger.error("Failed to read state snapshot {}, replaying journals only", snapshotFile, e);
+                    snapshot = new StateSnapshot();
+                }
+            }
+            for (Map.Entry<Long, Path> entry : findJournals().entrySet()) {
+                long journalGeneration = entry.getKey();
+                nextGeneration = Math.max(nextGeneration, journalGeneration + 1);
+                if (journalGeneration >= firstGeneration) {
+                    this.pendingRecords += replayJournal(entry.getValue(), snapshot);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to load state from {}", this.directory, e);
+        }
+        // A new journal is started rather than appending after a record that may be torn.
+        this.generation = nextGeneration;
+        openJournal();
+        logger.info("Loaded {} from {} up to journal generation {}", snapshot, this.directory, nextGeneration);
+        return snapshot;
+    }
+
+    @Override
+    public synchronized boolean hasChangesSinceSnapshot() {
+        return this.pendingRecords > 0;
+    }
+
+    @Override
+    public synchronized long rotateJournal() {
+        closeJournal();
+        this.generation++;
+        this.pendingRecords = 0;
+        openJournal();
+        return this.generation;
+    }
+
+    // Runs outside the journal lock. The state is read after the journal was rotated, so a
+    // change that the snapshot misses is in the new journal, and replaying one it already
+    // reflects has no effect.
+    @Override
+    public void writeSnapshot(long generation, List<SessionContext> contexts, List<Room> rooms) {
+        List<User> users = new ArrayList<>();
+        List<String> resumeTokenHashes = new ArrayList<>();
+        for (SessionContext context : contexts) {
+            User user = context.getUser();
+            String resumeTokenHash = context.getResumeTokenHash();
+            if (user != null && resumeTokenHash != null) {
+                users.add(user);
+                resumeTokenHashes.add(resumeTokenHash);
+            }
+        }
+        Path snapshotFile = this.directory.resolve(SNAPSHOT_FILE_NAME);
+        Path temporaryFile = this.directory.resolve(SNAPSHOT_FILE_NAME + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(
+                    temporaryFile,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                CheckedOutputStream checked = new CheckedOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE),
+                        new CRC32());
+                DataOutputStream output = new DataOutputStream(checked);
+                output.writeInt(SNAPSHOT_MAGIC);
+                output.writeInt(SNAPSHOT_FORMAT_VERSION);
+                output.writeLong(generation);
+                output.writeInt(users.size());
+                for (int i = 0; i < users.size(); i++) {
+                    User user = users.get(i);
+                    output.writeUTF(user.getSessionId());
+                    output.writeUTF(user.getName());
+                    writeTime(output, user.getJoinedTime());
+                    output.writeUTF(resumeTokenHashes.get(i));
+                }
+                output.writeInt(rooms.size());
+                for (Room room : rooms) {
+                    writeUuid(output, room.getId());
+                    output.writeUTF(room.getName());
+                    output.writeInt(room.getRecentMessages().getMaxFrames());
+                    List<String> sessionIds = room.getMembers().getSessionIds();
+                    output.writeInt(sessionIds.size());
+                    for (String sessionId : sessionIds) {
+                        output.writeUTF(sessionId);
+                    }
+                }
+                output.flush();
+                output.writeLong(checked.getChecksum().getValue());
+                output.flush();
+                channel.force(true);
+            }
+            Files.move(temporaryFile, snapshotFile,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Failed to write state snapshot {}", snapshotFile, e);
+            synchronized (this) {
+                // Keeps the next attempt due, while the older journals stay in place.
+                this.pendingRecords++;
+            }
+            return;
+        }
+        logger.info("Wrote state snapshot of {} rooms and {} users at journal generation {}",
+                rooms.size(),
+                users.size(),
+                generation);
+        deleteJournalsBefore(generation);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (this.journal == null) {
+            return;
+        }
+        try {
+            this.journal.flush();
+        } catch (IOException e) {
+            failJournal(e);
+        }
+    }
+
+    @Override
+    public synchronized void destroy() throws Exception {
+        closeJournal();
+    }
+
+    private synchronized void append(byte type, RecordWriter writer) {
+        if (this.journal == null) {
+            return;
+        }
+        try {
+            this.recordBuffer.reset();
+            this.recordOutput.writeByte(type);
+            writer.write(this.recordOutput);
+            byte[] record = this.recordBuffer.toByteArray();
+            this.checksum.reset();
+            this.checksum.update(record);
+            // Length and checksum come first, so a torn tail is detected on replay.
+            this.journal.writeInt(record.length);
+            this.journal.writeInt((int) this.checksum.getValue());
+            this.journal.write(record);
+            this.pendingRecords++;
+        } catch (IOException e) {
+            failJournal(e);
+        }
+    }
+
+    private void openJournal() {
+        Path file = this.directory.resolve(getJournalFileName(this.generation));
+        try {
+            Files.createDirectories(this.directory);
+            this.journal = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+                    BUFFER_SIZE));
+        } catch (IOException e) {
+            logger.error("Failed to open state journal {}", file, e);
+            this.journal = null;
+        }
+    }
+
+    private void closeJournal() {
+        if (this.journal == null) {
+            return;
+        }
+        try {
+            this.journal.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close state journal of generation {}", this.generation, e);
+        }
+        this.journal = null;
+    }
+
+    private void failJournal(IOException e) {
+        // Changes are not journaled again until the next snapshot starts a new journal.
+        logger.error("Failed to write state journal of generation {}", this.generation, e);
+        closeJournal();
+        this.pendingRecords++;
+    }
+
+    private long readSnapshot(Path file, StateSnapshot snapshot) throws IOException {
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE),
+                new CRC32());
+             DataInputStream input = new DataInputStream(checked)) {
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_FORMAT_VERSION) {
+                throw new IOException("Unsupported state snapshot format");
+            }
+            long snapshotGeneration = input.readLong();
+            int userCount = input.readInt();
+            for (int i = 0; i < userCount; i++) {
+                snapshot.putUser(input.readUTF(), input.readUTF(), readTime(input), input.readUTF());
+            }
+            int roomCount = input.readInt();
+            for (int i = 0; i < roomCount; i++) {
+                UUID roomId = readUuid(input);
+                snapshot.putRoom(roomId, input.readUTF(), input.readInt());
+                int memberCount = input.readInt();
+                for (int j = 0; j < memberCount; j++) {
+                    snapshot.addMember(roomId, input.readUTF());
+                }
+            }
+            long expected = checked.getChecksum().getValue();
+            if (input.readLong() != expected) {
+                throw new IOException("State snapshot checksum mismatch");
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    private long replayJournal(Path file, StateSnapshot snapshot) throws IOException {
+        long count = 0;
+        CRC32 recordChecksum = new CRC32();
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    logger.warn("State journal {} ends with an invalid record after {} records", file, count);
+                    break;
+                }
+                int expected = input.readInt();
+                byte[] record = new byte[length];
+                input.readFully(record);
+                recordChecksum.reset();
+                recordChecksum.update(record);
+                if ((int) recordChecksum.getValue() != expected) {
+                    logger.warn("State journal {} ends with a corrupt record after {} records", file, count);
+                    break;
+                }
+                apply(snapshot, new DataInputStream(new ByteArrayInputStream(record)));
+                count++;
+            }
+        } catch (EOFException e) {
+            logger.warn("State journal {} ends with a torn record after {} records", file, count);
+        }
+        return count;
+    }
+
+    private static void apply(StateSnapshot snapshot, DataInputStream input) throws IOException {
+        byte type = input.readByte();
+        switch (type) {
+            case ROOM_CREATED:
+                snapshot.putRoom(readUuid(input), input.readUTF(), input.readInt());
+                break;
+            case ROOM_REMOVED:
+                snapshot.removeRoom(readUuid(input));
+                break;
+            case MEMBER_JOINED:
+                snapshot.addMember(readUuid(input), input.readUTF());
+                break;
+            case MEMBER_LEFT:
+                snapshot.removeMember(readUuid(input), input.readUTF());
+                break;
+            case USER_AUTHENTICATED:
+                snapshot.putUser(input.readUTF(), input.readUTF(), readTime(input), input.readUTF());
+                break;
+            case RESUME_TOKEN_HASH:
+                snapshot.setResumeTokenHash(input.readUTF(), input.readUTF());
+                break;
+            case USER_REMOVED:
+                snapshot.removeUser(input.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown state journal record type: " + type);
+        }
+    }
+
+    private NavigableMap<Long, Path> findJournals() throws IOException {
+        NavigableMap<Long, Path> journals = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                this.directory,
+                JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                try {
+                    journals.put(Long.parseLong(fileName.substring(
+                            JOURNAL_PREFIX.length(),
+                            fileName.length() - JOURNAL_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file in state directory: {}", file);
+                }
+            }
+        }
+        return journals;
+    }
+
+    private void deleteJournalsBefore(long generation) {
+        try {
+            for (Path file : findJournals().headMap(generation, false).values()) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to delete state journals before generation {}", generation, e);
+        }
+    }
+
+    private static String getJournalFileName(long generation) {
+        return String.format("%s%020d%s", JOURNAL_PREFIX, generation, JOURNAL_SUFFIX);
+    }
+
+    private static void writeUuid(DataOutputStream output, UUID uuid) throws IOException {
+        output.writeLong(uuid.getMostSignificantBits());
+        output.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(DataInputStream input) throws IOException {
+        return new UUID(input.readLong(), input.readLong());
+    }
+
+    private static void writeTime(DataOutputStream output, LocalDateTime time) throws IOException {
+        output.writeLong(time.toLocalDate().toEpochDay());
+        output.writeLong(time.toLocalTime().toNanoOfDay());
+    }
+
+    private static LocalDateTime readTime(DataInputStream input) throws IOException {
+        return LocalDateTime.of(LocalDate.ofEpochDay(input.readLong()), LocalTime.ofNanoOfDay(input.readLong()));
+    }
+
+    private interface RecordWriter {
+
+        public void write(DataOutputStream output) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.example.chat.repository;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+public class StripedEntityStore<K, V> implements EntityStore<K, V> {
+
+    private final ConcurrentHashMap<K, V>[] stripes;
+    private final int mask;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public StripedEntityStore(int stripeCount, int initialCapacity) {
+        int count = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        // Every stripe is sized up front, so a growing store resizes one small table at a
+        // time instead of stalling writers on a single large rehash.
+        int stripeCapacity = Math.max(16, initialCapacity / count);
+        this.stripes = new ConcurrentHashMap[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new ConcurrentHashMap<>(stripeCapacity);
+        }
+        this.mask = count - 1;
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (ConcurrentHashMap<K, V> stripe : this.stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return stripeFor(key).containsKey(key);
+    }
+
+    @Override
+    public V get(K key) {
+        return stripeFor(key).get(key);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return stripeFor(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return stripeFor(key).replace(key, value);
+    }
+
+    @Override
+    public V remove(K key) {
+        return stripeFor(key).remove(key);
+    }
+
+    @Override
+    public boolean remove(K key, V value) {
+        return stripeFor(key).remove(key, value);
+    }
+
+    @Override
+    public Stream<V> values() {
+        return Arrays.stream(this.stripes).flatMap(stripe -> stripe.values().stream());
+    }
+
+    private ConcurrentHashMap<K, V> stripeFor(K key) {
+        // Mix the hash before picking a stripe so keys that share a stripe do not also
+        // crowd into the same bins of that stripe's table.
+        int hash = key.hashCode() * 0x9E3779B9;
+        return this.stripes[(hash >>> 16) & this.mask];
+    }
+
+}
@@ -1,12 +1,10 @@
 package com.example.chat.repository;
 
-import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.springframework.stereotype.Repository;
 
+import com.example.chat.entity.SessionContext;
 import com.example.chat.entity.UserAuth;
 
 @Repository
@@ -14,64 +12,34 @@ public class UserAuthRepositoryImpl
         extends AbstractSessionBasedRepository<UserAuth>
         implements UserAuthRepository {
 
-    private final Map<String, UserAuth> userAuths;
-
     public UserAuthRepositoryImpl(SessionRepository sessionRepository) {
         super(sessionRepository, UserAuth::getSessionId, UserAuth.class);
-        this.userAuths = new ConcurrentSkipListMap<>();
     }
 
     @Override
     public void updateUserAuth(UserAuth userAuth) {
         String sessionId = userAuth.getSessionId();
-        if (!this.userAuths.containsKey(sessionId)) {
+        Optional<SessionContext> context = findContext(sessionId);
+        if (context.isEmpty() || !context.get().replaceUserAuth(userAuth)) {
             getLogger().warn("Cannot update user auth with session ID: {}", sessionId);
             return;
         }
-        this.userAuths.put(sessionId, userAuth);
         getLogger().info("{} updated to {} with session ID: {}", this.entityName, userAuth.getUserAuthState(), sessionId);
     }
 
     @Override
-    public long getCount() {
-        return this.userAuths.size();
-    }
-
-    @Override
-    public List<UserAuth> getAllEntities() {
-        return this.userAuths
-                .values()
-                .stream()
-                .toList();
-    }
-
-    @Override
-    protected boolean containsEntityByKeyBasedOnSession(String sessionId) {
-        return this.userAuths.containsKey(sessionId);
-    }
-
-    @Override
-    protected Optional<UserAuth> findEntityByKeyBasedOnSession(String sessionId) {
-        return Optional.ofNullable(this.userAuths.get(sessionId));
+    protected UserAuth findEntityBasedOnSession(SessionContext context) {
+        return context.getUserAuth();
     }
 
     @Override
-    protected boolean addEntityBasedOnSession(UserAuth entity) {
-        String sessionId = entity.getSessionId();
-        if (this.userAuths.containsKey(sessionId)) {
-            return false;
-        }
-        this.userAuths.put(sessionId, entity);
-        return true;
+    protected boolean addEntityBasedOnSession(SessionContext context, UserAuth entity) {
+        return context.setUserAuthIfAbsent(entity);
     }
 
     @Override
-    protected boolean removeEntityByKeyBasedOnSession(String sessionId) {
-        if (!this.userAuths.containsKey(sessionId)) {
-            return false;
-        }
-        this.userAuths.remove(sessionId);
-        return true;
+    protected boolean removeEntityBasedOnSession(SessionContext context) {
+        return context.removeUserAuth();
     }
 
 }
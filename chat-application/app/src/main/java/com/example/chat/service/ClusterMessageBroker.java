@@ -0,0 +1,23 @@
+package com.example.chat.service;
+
+import java.util.UUID;
+
+import com.example.chat.entity.Room;
+
+public interface ClusterMessageBroker {
+
+    // Delivers to the room's members on this node and has every peer deliver to its own.
+    public void publishEvent(Room room, String message);
+
+    // Like publishEvent, and peers also keep the frame in their history of the room.
+    public void publishChat(Room room, String message, byte[] payload);
+
+    public void publishRoomCreated(Room room);
+
+    public void publishRoomRemoved(UUID roomId);
+
+    public void publishMemberCount(Room room);
+
+    public boolean hasRemoteMembers(UUID roomId);
+
+}
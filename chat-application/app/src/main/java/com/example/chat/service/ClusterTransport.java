@@ -0,0 +1,20 @@
+package com.example.chat.service;
+
+import com.example.chat.event.EventListenerManager;
+import com.example.chat.event.cluster.ClusterEventListener;
+
+public interface ClusterTransport extends EventListenerManager<ClusterEventListener> {
+
+    public String getNodeId();
+
+    public boolean hasPeers();
+
+    // Called once the listeners are registered, so no peer event is missed.
+    public void start();
+
+    // Sends the payload to every connected peer, but not back to this node.
+    public void publish(byte[] payload);
+
+    public void close();
+
+}
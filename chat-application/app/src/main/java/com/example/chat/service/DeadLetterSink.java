@@ -0,0 +1,9 @@
+package com.example.chat.service;
+
+import org.springframework.web.socket.WebSocketMessage;
+
+public interface DeadLetterSink {
+
+    public void accept(String sessionId, WebSocketMessage<?> message, Exception cause);
+
+}
@@ -1,5 +1,7 @@
 package com.example.chat.service;
 
+import java.util.Collection;
+
 import org.springframework.web.socket.WebSocketSession;
 
 public interface MessageBroker {
@@ -8,6 +10,16 @@ public interface MessageBroker {
 
     public void sendMessage(String sessionId, Object message);
 
+    public void sendCoalescingMessage(String sessionId, String coalesceKey, String message);
+
+    public void broadcast(Collection<String> sessionIds, String message);
+
+    public void broadcast(Collection<String> sessionIds, Object message);
+
+    public boolean replay(String sessionId, long lastSequence, String message);
+
+    public void resume(String sessionId);
+
     public default void sendMessage(WebSocketSession session, String message) {
         sendMessage(session.getId(), message);
     }
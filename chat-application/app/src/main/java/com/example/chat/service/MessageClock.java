@@ -0,0 +1,14 @@
+package com.example.chat.service;
+
+import java.time.LocalDateTime;
+
+public interface MessageClock {
+
+    public long currentTimeMillis();
+
+    public LocalDateTime now();
+
+    // ISO_DATE_TIME text of the current millisecond, as sent in the timestamp field.
+    public String currentTimestamp();
+
+}
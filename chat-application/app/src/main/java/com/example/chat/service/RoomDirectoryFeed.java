@@ -0,0 +1,14 @@
+package com.example.chat.service;
+
+public interface RoomDirectoryFeed {
+
+    public boolean subscribe(String sessionId);
+
+    public boolean unsubscribe(String sessionId);
+
+    public boolean isSubscribed(String sessionId);
+
+    // Called after the room directory changed. Changes are pushed to subscribers in batches.
+    public void publishChanges();
+
+}
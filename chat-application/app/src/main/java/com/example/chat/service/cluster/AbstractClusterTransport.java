@@ -0,0 +1,62 @@
+package com.example.chat.service.cluster;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.example.chat.event.EventListenerManagerBase;
+import com.example.chat.event.cluster.ClusterEventListener;
+import com.example.chat.event.cluster.ClusterMessageListener;
+import com.example.chat.event.cluster.ClusterPeerListener;
+import com.example.chat.service.ClusterTransport;
+
+public abstract class AbstractClusterTransport
+        extends EventListenerManagerBase<ClusterEventListener>
+        implements ClusterTransport {
+
+    private static final Logger logger = LogManager.getLogger(AbstractClusterTransport.class);
+
+    protected final String nodeId;
+
+    protected AbstractClusterTransport(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    // A failing listener must not stop delivery to the others or tear down the transport.
+    protected void dispatchMessage(String peerNodeId, byte[] payload) {
+        for (ClusterMessageListener listener : getListeners(ClusterMessageListener.class)) {
+            try {
+                listener.onClusterMessage(peerNodeId, payload);
+            } catch (Exception e) {
+                logger.error("Failed to handle cluster message from node {}", peerNodeId, e);
+            }
+        }
+    }
+
+    protected void dispatchPeerConnected(String peerNodeId) {
+        logger.info("Node {} connected to cluster peer {}", this.nodeId, peerNodeId);
+        for (ClusterPeerListener listener : getListeners(ClusterPeerListener.class)) {
+            try {
+                listener.onPeerConnected(peerNodeId);
+            } catch (Exception e) {
+                logger.error("Failed to handle connection of cluster peer {}", peerNodeId, e);
+            }
+        }
+    }
+
+    protected void dispatchPeerDisconnected(String peerNodeId) {
+        logger.info("Node {} disconnected from cluster peer {}", this.nodeId, peerNodeId);
+        for (ClusterPeerListener listener : getListeners(ClusterPeerListener.class)) {
+            try {
+                listener.onPeerDisconnected(peerNodeId);
+            } catch (Exception e) {
+                logger.error("Failed to handle disconnection of cluster peer {}", peerNodeId, e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,443 @@
+package com.example.chat.service.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.chat.entity.Room;
+import com.example.chat.entity.SessionContext;
+import com.example.chat.entity.User;
+import com.example.chat.event.cluster.ClusterMessageListener;
+import com.example.chat.event.cluster.ClusterPeerListener;
+import com.example.chat.repository.ChatLogRepository;
+import com.example.chat.repository.RecentMessageArena;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.repository.SessionRepository;
+import com.example.chat.repository.StateSnapshotRepository;
+import com.example.chat.service.ClusterMessageBroker;
+import com.example.chat.service.ClusterTransport;
+import com.example.chat.service.MessageBroker;
+import com.example.chat.service.RoomDirectoryFeed;
+import com.example.chat.service.websocket.RoomMessageEncoder;
+
+@Service
+public class ClusterMessageBrokerService
+        implements ClusterMessageBroker,
+                   ClusterMessageListener,
+                   ClusterPeerListener,
+                   SmartInitializingSingleton,
+                   DisposableBean {
+
+    private static final Logger logger = LogManager.getLogger(ClusterMessageBrokerService.class);
+
+    private static final byte ROOM_EVENT = 1;
+    private static final byte ROOM_CHAT = 2;
+    private static final byte ROOM_CREATED = 3;
+    private static final byte ROOM_REMOVED = 4;
+    private static final byte MEMBER_COUNT = 5;
+
+    private final ClusterTransport clusterTransport;
+    private final MessageBroker messageBroker;
+    private final RoomRepository roomRepository;
+    private final RecentMessageArena recentMessageArena;
+    private final ChatLogRepository chatLogRepository;
+    private final StateSnapshotRepository stateSnapshotRepository;
+    private final RoomDirectoryFeed roomDirectoryFeed;
+    private final SessionRepository sessionRepository;
+    private final RoomMessageEncoder roomMessageEncoder;
+    // Members each peer has in a room, as last reported by the peer. Zero counts are dropped.
+    private final Map<UUID, Map<String, Integer>> remoteMemberCounts;
+    // Rooms removed on this node, with the time of removal. A peer that missed the removal
+    // announces the room again, and it only comes back if someone there is still in it.
+    private final Map<UUID, Long> removedRoomIds;
+    // The same removals in the order they were made, so expired ones are trimmed from the
+    // head instead of scanning every tombstone.
+    private final Queue<Tombstone> tombstones;
+    private final long tombstoneTtl;
+
+    public ClusterMessageBrokerService(
+            ClusterTransport clusterTransport,
+            MessageBroker messageBroker,
+            RoomRepository roomRepository,
+            RecentMessageArena recentMessageArena,
+            ChatLogRepository chatLogRepository,
+            StateSnapshotRepository stateSnapshotRepository,
+            RoomDirectoryFeed roomDirectoryFeed,
+            SessionRepository sessionRepository,
+            RoomMessageEncoder roomMessageEncoder,
+            @Value("${cluster.tombstone-ttl:3600000}") long tombstoneTtl) {
+        this.clusterTransport = clusterTransport;
+        this.messageBroker = messageBroker;
+        this.roomRepository = roomRepository;
+        this.recentMessageArena = recentMessageArena;
+        this.chatLogRepository = chatLogRepository;
+        this.stateSnapshotRepository = stateSnapshotRepository;
+        this.roomDirectoryFeed = roomDirectoryFeed;
+        this.sessionRepository = sessionRepository;
+        this.roomMessageEncoder = roomMessageEncoder;
+        this.remoteMemberCounts = new ConcurrentHashMap<>();
+        this.removedRoomIds = new ConcurrentHashMap<>();
+        this.tombstones = new ConcurrentLinkedQueue<>();
+        this.tombstoneTtl = tombstoneTtl;
+        this.clusterTransport.addListener(this);
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        // Joined once the rooms restored at startup are in place, so peers learn about them.
+        this.clusterTransport.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.clusterTransport.removeListener(this);
+    }
+
+    @Override
+    public void publishEvent(Room room, String message) {
+        this.messageBroker.broadcast(room.getMembers().getSessionIds(), message);
+        // Peers without members in the room would only discard the event.
+        if (!this.clusterTransport.hasPeers() || !hasRemoteMembers(room.getId())) {
+            return;
+        }
+        byte[] frame = message.getBytes(StandardCharsets.UTF_8);
+        publish(ROOM_EVENT, output -> {
+            writeUuid(output, room.getId());
+            output.writeInt(frame.length);
+            output.write(frame);
+        });
+    }
+
+    @Override
+    public void publishChat(Room room, String message, byte[] payload) {
+        this.messageBroker.broadcast(room.getMembers().getSessionIds(), message);
+        // Sent to every peer, so the room's history is complete wherever it is read.
+        if (!this.clusterTransport.hasPeers()) {
+            return;
+        }
+        publish(ROOM_CHAT, output -> {
+            writeUuid(output, room.getId());
+            output.writeInt(payload.length);
+            output.write(payload);
+        });
+    }
+
+    @Override
+    public void publishRoomCreated(Room room) {
+        if (!this.clusterTransport.hasPeers()) {
+            return;
+        }
+        int memberCount = room.getMembers().size();
+        publish(ROOM_CREATED, output -> {
+            writeUuid(output, room.getId());
+            output.writeUTF(room.getName());
+            output.writeInt(room.getRecentMessages().getMaxFrames());
+            output.writeInt(memberCount);
+        });
+    }
+
+    @Override
+    public void publishRoomRemoved(UUID roomId) {
+        this.remoteMemberCounts.remove(roomId);
+        addTombstone(roomId);
+        if (!this.clusterTransport.hasPeers()) {
+            return;
+        }
+        publish(ROOM_REMOVED, output -> writeUuid(output, roomId));
+    }
+
+    @Override
+    public void publishMemberCount(Room room) {
+        if (!this.clusterTransport.hasPeers()) {
+            return;
+        }
+        int memberCount = room.getMembers().size();
+        publish(MEMBER_COUNT, output -> {
+            writeUuid(output, room.getId());
+            output.writeInt(memberCount);
+        });
+    }
+
+    @Override
+    public boolean hasRemoteMembers(UUID roomId) {
+        Map<String, Integer> memberCounts = this.remoteMemberCounts.get(roomId);
+        return memberCounts != null && !memberCounts.isEmpty();
+    }
+
+    @Override
+    public void onClusterMessage(String nodeId, byte[] payload) throws Exception {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = input.readByte();
+        UUID roomId = readUuid(input);
+        switch (type) {
+            case ROOM_EVENT:
+                deliverEvent(roomId, readFrame(input));
+                break;
+            case ROOM_CHAT:
+                deliverChat(roomId, readFrame(input));
+                break;
+            case ROOM_CREATED:
+                addRemoteRoom(nodeId, roomId, input.readUTF(), input.readInt(), input.readInt());
+                break;
+            case ROOM_REMOVED:
+                removeRemoteRoom(nodeId, roomId);
+                break;
+            case MEMBER_COUNT:
+                updateMemberCount(nodeId, roomId, input.readInt());
+                break;
+            default:
+                logger.warn("Unknown cluster message type {} from node {}", type, nodeId);
+                break;
+        }
+    }
+
+    @Override
+    public void onPeerConnected(String nodeId) {
+        // Peers may have missed any change made while they were away, so the whole local
+        // directory is announced again, along with how many members each room has here.
+        for (Room room : this.roomRepository.getAllEntities()) {
+            publishRoomCreated(room);
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(String nodeId) {
+        // Members of a node that is gone no longer hold its rooms open.
+        for (Map<String, Integer> memberCounts : this.remoteMemberCounts.values()) {
+            memberCounts.remove(nodeId);
+        }
+        this.remoteMemberCounts.values().removeIf(Map::isEmpty);
+    }
+
+    private void deliverEvent(UUID roomId, byte[] frame) {
+        Optional<Room> roomOptional = this.roomRepository.findEntityByKey(roomId);
+        if (roomOptional.isEmpty()) {
+            return;
+        }
+        Room room = roomOptional.get();
+        if (room.getMembers().isEmpty()) {
+            return;
+        }
+        this.messageBroker.broadcast(room.getMembers().getSessionIds(), new String(frame, StandardCharsets.UTF_8));
+    }
+
+    private void deliverChat(UUID roomId, byte[] frame) {
+        Optional<Room> roomOptional = this.roomRepository.findEntityByKey(roomId);
+        if (roomOptional.isEmpty()) {
+            return;
+        }
+        Room room = roomOptional.get();
+        this.chatLogRepository.append(roomId, frame);
+        room.getRecentMessages().append(frame);
+        if (!room.getMembers().isEmpty()) {
+            this.messageBroker.broadcast(room.getMembers().getSessionIds(), new String(frame, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void addRemoteRoom(String nodeId, UUID roomId, String name, int recentMessageCount, int memberCount) {
+        if (this.roomRepository.containsEntityByKey(roomId)) {
+            updateMemberCount(nodeId, roomId, memberCount);
+            return;
+        }
+        if (this.removedRoomIds.containsKey(roomId)) {
+            if (memberCount == 0) {
+                // The peer missed the removal, and with nobody in the room it drops its copy.
+                publish(ROOM_REMOVED, output -> writeUuid(output, roomId));
+                return;
+            }
+            this.removedRoomIds.remove(roomId);
+        }
+        // Rooms of the same name created on two nodes at once are settled the same way
+        // everywhere: the one with the lower ID stays, and the other one's members move in.
+        Room existing = this.roomRepository.findEntityByName(name).orElse(null);
+        List<User> movedMembers = List.of();
+        if (existing != null) {
+            if (existing.getId().compareTo(roomId) < 0) {
+                publishRoomCreated(existing);
+                return;
+            }
+            movedMembers = dissolveRoom(existing);
+        }
+        Room room = new Room(roomId, name, this.recentMessageArena.allocate(recentMessageCount));
+        // Journaled before local users can join it, as for rooms created here.
+        this.stateSnapshotRepository.recordRoomCreated(room);
+        this.roomRepository.addEntity(room);
+        if (this.roomRepository.findEntityByKey(roomId).orElse(null) != room) {
+            this.stateSnapshotRepository.recordRoomRemoved(roomId);
+            this.recentMessageArena.release(room.getRecentMessages());
+            logger.warn("Room {} '{}' of node {} lost its name to another room while being added",
+                    roomId,
+                    name,
+                    nodeId);
+            return;
+        }
+        updateMemberCount(nodeId, roomId, memberCount);
+        this.roomDirectoryFeed.publishChanges();
+        if (!movedMembers.isEmpty()) {
+            moveMembers(existing.getId(), room, movedMembers);
+            logger.info("Room {} '{}' merged into room {} of node {}", existing.getId(), name, roomId, nodeId);
+        }
+    }
+
+    // Drops a room that lost its name to another one, and returns its members.
+    private List<User> dissolveRoom(Room room) {
+        List<User> members;
+        synchronized (room) {
+            this.roomRepository.removeEntity(room);
+            this.stateSnapshotRepository.recordRoomRemoved(room.getId());
+            members = room.getMembers().getUsers();
+        }
+        this.remoteMemberCounts.remove(room.getId());
+        this.chatLogRepository.removeLog(room.getId());
+        return members;
+    }
+
+    private void moveMembers(UUID fromRoomId, Room room, List<User> users) {
+        for (User user : users) {
+            SessionContext context = this.sessionRepository.findContextByKey(user.getSessionId()).orElse(null);
+            if (context == null) {
+                continue;
+            }
+            boolean added;
+            synchronized (room) {
+                added = room.getMembers().add(user);
+                if (added) {
+                    this.stateSnapshotRepository.recordMemberJoined(room.getId(), user.getSessionId());
+                }
+            }
+            context.removeJoinedRoom(fromRoomId);
+            context.addJoinedRoom(room.getId());
+            if (added) {
+                publishEvent(room, this.roomMessageEncoder.encodeJoin(room, user));
+            }
+        }
+        publishMemberCount(room);
+    }
+
+    private void removeRemoteRoom(String nodeId, UUID roomId) {
+        Map<String, Integer> memberCounts = this.remoteMemberCounts.get(roomId);
+        if (memberCounts != null) {
+            memberCounts.remove(nodeId);
+        }
+        Optional<Room> roomOptional = this.roomRepository.findEntityByKey(roomId);
+        if (roomOptional.isEmpty()) {
+            addTombstone(roomId);
+            return;
+        }
+        Room room = roomOptional.get();
+        boolean inUse;
+        synchronized (room) {
+            inUse = !room.getMembers().isEmpty() || hasRemoteMembers(roomId);
+            if (!inUse) {
+                this.roomRepository.removeEntity(room);
+                this.stateSnapshotRepository.recordRoomRemoved(roomId);
+            }
+        }
+        if (inUse) {
+            // Someone joined here before the removal arrived, so the room lives on and the
+            // peers that dropped it learn about it again. Members of other nodes are
+            // announced by their own nodes.
+            if (!room.getMembers().isEmpty()) {
+                publishRoomCreated(room);
+            }
+            return;
+        }
+        addTombstone(roomId);
+        this.remoteMemberCounts.remove(roomId);
+        this.chatLogRepository.removeLog(roomId);
+        this.roomDirectoryFeed.publishChanges();
+        logger.info("Room {} removed because node {} removed it.", roomId, nodeId);
+    }
+
+    private void addTombstone(UUID roomId) {
+        long now = System.currentTimeMillis();
+        this.removedRoomIds.put(roomId, now);
+        this.tombstones.offer(new Tombstone(roomId, now));
+        Tombstone oldest;
+        while ((oldest = this.tombstones.peek()) != null && oldest.removedTime < now - this.tombstoneTtl) {
+            if (this.tombstones.remove(oldest)) {
+                // A room removed again since then keeps its later tombstone.
+                this.removedRoomIds.remove(oldest.roomId, oldest.removedTime);
+            }
+        }
+    }
+
+    private void updateMemberCount(String nodeId, UUID roomId, int memberCount) {
+        if (memberCount > 0) {
+            this.remoteMemberCounts
+                    .computeIfAbsent(roomId, key -> new ConcurrentHashMap<>())
+                    .put(nodeId, memberCount);
+            return;
+        }
+        Map<String, Integer> memberCounts = this.remoteMemberCounts.get(roomId);
+        if (memberCounts != null) {
+            memberCounts.remove(nodeId);
+        }
+    }
+
+    private void publish(byte type, ClusterMessageWriter writer) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+        DataOutputStream output = new DataOutputStream(buffer);
+        try {
+            output.writeByte(type);
+            writer.write(output);
+        } catch (IOException e) {
+            // Writing to memory does not fail.
+            throw new UncheckedIOException(e);
+        }
+        this.clusterTransport.publish(buffer.toByteArray());
+    }
+
+    private static byte[] readFrame(DataInputStream input) throws IOException {
+        byte[] frame = new byte[input.readInt()];
+        input.readFully(frame);
+        return frame;
+    }
+
+    private static void writeUuid(DataOutputStream output, UUID uuid) throws IOException {
+        output.writeLong(uuid.getMostSignificantBits());
+        output.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(DataInputStream input) throws IOException {
+        return new UUID(input.readLong(), input.readLong());
+    }
+
+    @FunctionalInterface
+    private interface ClusterMessageWriter {
+
+        public void write(DataOutputStream output) throws IOException;
+
+    }
+
+    private static class Tombstone {
+
+        private final UUID roomId;
+        private final long removedTime;
+
+        private Tombstone(UUID roomId, long removedTime) {
+            this.roomId = roomId;
+            this.removedTime = removedTime;
+        }
+
+    }
+
+}
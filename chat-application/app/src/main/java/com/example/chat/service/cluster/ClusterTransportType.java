@@ -0,0 +1,6 @@
+package com.example.chat.service.cluster;
+
+public enum ClusterTransportType {
+    LOOPBACK,
+    TCP,
+}
@@ -0,0 +1,92 @@
+package com.example.chat.service.cluster;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+// Connects nodes running in the same JVM, such as several application contexts in a test.
+// A node alone on its hub has no peers, which is how a single node runs.
+public class LoopbackClusterTransport extends AbstractClusterTransport {
+
+    private final Hub hub;
+    private final ExecutorService executorService;
+
+    public LoopbackClusterTransport(String nodeId, Hub hub) {
+        super(nodeId);
+        this.hub = hub;
+        // Every node receives on its own thread in publishing order, as over a connection.
+        this.executorService = Executors.newSingleThreadExecutor(
+                new CustomizableThreadFactory("Cluster Loopback " + nodeId + " "));
+    }
+
+    @Override
+    public boolean hasPeers() {
+        return this.hub.transports.size() > 1 && this.hub.transports.contains(this);
+    }
+
+    @Override
+    public void start() {
+        this.hub.join(this);
+    }
+
+    @Override
+    public void publish(byte[] payload) {
+        for (LoopbackClusterTransport transport : this.hub.transports) {
+            if (transport != this) {
+                transport.submit(() -> transport.dispatchMessage(this.nodeId, payload));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.hub.leave(this);
+        this.executorService.shutdown();
+    }
+
+    private void submit(Runnable task) {
+        try {
+            this.executorService.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The node is closing and no longer takes part in the cluster.
+        }
+    }
+
+    public static class Hub {
+
+        private final List<LoopbackClusterTransport> transports;
+
+        public Hub() {
+            this.transports = new CopyOnWriteArrayList<>();
+        }
+
+        private synchronized void join(LoopbackClusterTransport transport) {
+            if (this.transports.contains(transport)) {
+                return;
+            }
+            // Added first, so whatever a peer publishes on hearing of the node reaches it.
+            this.transports.add(transport);
+            for (LoopbackClusterTransport peer : this.transports) {
+                if (peer != transport) {
+                    peer.submit(() -> peer.dispatchPeerConnected(transport.nodeId));
+                    transport.submit(() -> transport.dispatchPeerConnected(peer.nodeId));
+                }
+            }
+        }
+
+        private synchronized void leave(LoopbackClusterTransport transport) {
+            if (!this.transports.remove(transport)) {
+                return;
+            }
+            for (LoopbackClusterTransport peer : this.transports) {
+                peer.submit(() -> peer.dispatchPeerDisconnected(transport.nodeId));
+            }
+        }
+
+    }
+
+}
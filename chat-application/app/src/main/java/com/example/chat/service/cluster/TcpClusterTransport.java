@@ -0,0 +1,535 @@
+package com.example.chat.service.cluster;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+// Keeps one connection to every peer, all served by a single selector thread. Frames are
+// a length, a kind and a body. Each side of a connection opens with a random challenge and
+// answers the other's with a hello naming its node, signed with the cluster's shared secret.
+public class TcpClusterTransport extends AbstractClusterTransport {
+
+    private static final Logger logger = LogManager.getLogger(TcpClusterTransport.class);
+
+    private static final byte FRAME_HELLO = 0;
+    private static final byte FRAME_MESSAGE = 1;
+    private static final byte FRAME_CHALLENGE = 2;
+    private static final int FRAME_HEADER_SIZE = Integer.BYTES + 1;
+    private static final int MAX_FRAME_SIZE = 16 << 20;
+    // Frames of a peer that has not proven itself yet are no larger than a hello.
+    private static final int MAX_HELLO_FRAME_SIZE = 1024;
+    private static final int CHALLENGE_SIZE = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int SIGNATURE_SIZE = 32;
+    private static final SecureRandom random = new SecureRandom();
+    private static final int READ_BUFFER_SIZE = 64 << 10;
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    private final InetSocketAddress bindAddress;
+    private final SecretKeySpec secretKey;
+    private final List<InetSocketAddress> peerAddresses;
+    private final long reconnectInterval;
+    private final long maxQueuedBytes;
+    private final Map<String, Connection> connections;
+    private final Map<InetSocketAddress, Connection> outboundConnections;
+    private final Map<InetSocketAddress, String> peerNodeIds;
+    private final Queue<Runnable> selectorTasks;
+    private final ExecutorService dispatchExecutor;
+
+    private volatile boolean running;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+
+    // Only touched by the selector thread.
+    private long nextConnectTime;
+
+    public TcpClusterTransport(
+            String nodeId,
+            InetSocketAddress bindAddress,
+            String secret,
+            List<InetSocketAddress> peerAddresses,
+            long reconnectInterval,
+            long maxQueuedBytes) {
+        super(nodeId);
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("A shared secret is required for the TCP cluster transport");
+        }
+        this.bindAddress = bindAddress;
+        this.secretKey = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.peerAddresses = List.copyOf(peerAddresses);
+        this.reconnectInterval = reconnectInterval;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.connections = new ConcurrentHashMap<>();
+        this.outboundConnections = new ConcurrentHashMap<>();
+        this.peerNodeIds = new ConcurrentHashMap<>();
+        this.selectorTasks = new ConcurrentLinkedQueue<>();
+        // Listeners run off the selector thread, one at a time so that every peer's frames
+        // are handled in the order they arrived.
+        this.dispatchExecutor = Executors.newSingleThreadExecutor(
+                new CustomizableThreadFactory("Cluster TCP Dispatch "));
+    }
+
+    @Override
+    public boolean hasPeers() {
+        return !this.connections.isEmpty();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+        try {
+            this.selector = Selector.open();
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.configureBlocking(false);
+            this.serverChannel.bind(this.bindAddress);
+            this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to listen for cluster peers on " + this.bindAddress, e);
+        }
+        this.running = true;
+        this.selectorThread = new CustomizableThreadFactory("Cluster TCP Transport ").newThread(this::run);
+        this.selectorThread.start();
+        logger.info("Node {} listening for cluster peers on {}, connecting to {}",
+                this.nodeId,
+                this.bindAddress,
+                this.peerAddresses);
+    }
+
+    @Override
+    public void publish(byte[] payload) {
+        if (this.connections.isEmpty()) {
+            return;
+        }
+        // Peers share the encoded frame, each through its own position.
+        ByteBuffer frame = encodeFrame(FRAME_MESSAGE, payload);
+        for (Connection connection : this.connections.values()) {
+            connection.enqueue(frame.duplicate());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!this.running) {
+            return;
+        }
+        this.running = false;
+        this.selector.wakeup();
+        try {
+            this.selectorThread.join(this.reconnectInterval + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.dispatchExecutor.shutdown();
+    }
+
+    private void run() {
+        try {
+            while (this.running) {
+                long now = System.currentTimeMillis();
+                if (now >= this.nextConnectTime) {
+                    connectPeers();
+                    this.nextConnectTime = now + this.reconnectInterval;
+                }
+                this.selector.select(Math.max(1, this.nextConnectTime - now));
+                Runnable task;
+                while ((task = this.selectorTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Cluster transport of node {} stopped", this.nodeId, e);
+        } finally {
+            for (SelectionKey key : this.selector.keys()) {
+                if (key.attachment() instanceof Connection connection) {
+                    closeConnection(connection, null);
+                }
+            }
+            closeQuietly(this.serverChannel);
+            closeQuietly(this.selector);
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            if (key.isConnectable()) {
+                connection.finishConnect();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+        } catch (IOException | RuntimeException e) {
+            closeConnection(connection, e);
+        }
+    }
+
+    private void connectPeers() {
+        for (InetSocketAddress address : this.peerAddresses) {
+            if (this.outboundConnections.containsKey(address)) {
+                continue;
+            }
+            // A peer that connected to this node first needs no second connection.
+            String peerNodeId = this.peerNodeIds.get(address);
+            if (peerNodeId != null && this.connections.containsKey(peerNodeId)) {
+                continue;
+            }
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel, address);
+                this.outboundConnections.put(address, connection);
+                // Resolved again on every attempt, so a peer that moved is found.
+                InetSocketAddress resolved = new InetSocketAddress(address.getHostString(), address.getPort());
+                if (channel.connect(resolved)) {
+                    connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+                    connection.sendChallenge();
+                } else {
+                    connection.key = channel.register(this.selector, SelectionKey.OP_CONNECT, connection);
+                }
+            } catch (IOException e) {
+                logger.debug("Failed to connect to cluster peer {}", address, e);
+                this.outboundConnections.remove(address);
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel, null);
+        connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+        connection.sendChallenge();
+    }
+
+    private void handleHello(Connection connection, byte[] body) throws IOException {
+        if (connection.peerNodeId != null) {
+            return;
+        }
+        if (body.length <= SIGNATURE_SIZE) {
+            throw new IOException("Invalid cluster hello");
+        }
+        byte[] nodeIdBytes = Arrays.copyOfRange(body, 0, body.length - SIGNATURE_SIZE);
+        byte[] signature = Arrays.copyOfRange(body, body.length - SIGNATURE_SIZE, body.length);
+        // Signed over this connection's challenge, so a hello seen elsewhere cannot be replayed.
+        if (!MessageDigest.isEqual(signature, sign(connection.challenge, nodeIdBytes))) {
+            throw new IOException("Cluster peer failed to authenticate");
+        }
+        String peerNodeId = new String(nodeIdBytes, StandardCharsets.UTF_8);
+        if (peerNodeId.equals(this.nodeId)) {
+            throw new IOException("Connected to this node itself");
+        }
+        connection.peerNodeId = peerNodeId;
+        if (connection.address != null) {
+            this.peerNodeIds.put(connection.address, peerNodeId);
+        }
+        Connection existing = this.connections.putIfAbsent(peerNodeId, connection);
+        if (existing == null) {
+            dispatch(() -> dispatchPeerConnected(peerNodeId));
+            return;
+        }
+        // Two nodes that dialed each other at once settle on the same connection, the one
+        // opened by the node with the lower ID, without reporting the peer as gone.
+        if (isPreferred(connection) && !isPreferred(existing)) {
+            this.connections.put(peerNodeId, connection);
+            closeConnection(existing, null);
+        } else {
+            closeConnection(connection, null);
+        }
+    }
+
+    private boolean isPreferred(Connection connection) {
+        String initiator = connection.address != null ? this.nodeId : connection.peerNodeId;
+        String acceptor = connection.address != null ? connection.peerNodeId : this.nodeId;
+        return initiator.compareTo(acceptor) < 0;
+    }
+
+    private void closeConnection(Connection connection, Exception cause) {
+        if (connection == null || connection.closed) {
+            return;
+        }
+        connection.closed = true;
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        closeQuietly(connection.channel);
+        if (connection.address != null) {
+            this.outboundConnections.remove(connection.address, connection);
+        }
+        String peerNodeId = connection.peerNodeId;
+        if (peerNodeId != null && this.connections.remove(peerNodeId, connection)) {
+            if (cause != null) {
+                logger.warn("Lost connection to cluster peer {}", peerNodeId, cause);
+            }
+            dispatch(() -> dispatchPeerDisconnected(peerNodeId));
+        }
+    }
+
+    private void dispatch(Runnable task) {
+        try {
+            this.dispatchExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The transport is closing and nothing is delivered anymore.
+        }
+    }
+
+    private void runOnSelector(Runnable task) {
+        this.selectorTasks.add(task);
+        this.selector.wakeup();
+    }
+
+    private byte[] sign(byte[] challenge, byte[] nodeIdBytes) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(this.secretKey);
+            mac.update(challenge);
+            return mac.doFinal(nodeIdBytes);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to sign cluster hello", e);
+        }
+    }
+
+    private static ByteBuffer encodeFrame(byte kind, byte[] body) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + body.length);
+        frame.putInt(body.length).put(kind).put(body);
+        return frame.flip();
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            logger.debug("Failed to close {}", closeable, e);
+        }
+    }
+
+    private class Connection {
+
+        private final SocketChannel channel;
+        // The configured address for connections this node opened, null for accepted ones.
+        private final InetSocketAddress address;
+        private final Queue<ByteBuffer> writeQueue;
+        private final AtomicLong queuedBytes;
+        private final AtomicBoolean writeRequested;
+        // Sent to the peer, whose hello has to be signed over it.
+        private final byte[] challenge;
+        private volatile String peerNodeId;
+
+        // Only touched by the selector thread.
+        private SelectionKey key;
+        private ByteBuffer readBuffer;
+        private boolean helloSent;
+        private boolean closed;
+
+        private Connection(SocketChannel channel, InetSocketAddress address) {
+            this.channel = channel;
+            this.address = address;
+            this.writeQueue = new ConcurrentLinkedQueue<>();
+            this.queuedBytes = new AtomicLong();
+            this.writeRequested = new AtomicBoolean();
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.challenge = new byte[CHALLENGE_SIZE];
+            random.nextBytes(this.challenge);
+        }
+
+        public void enqueue(ByteBuffer frame) {
+            int size = frame.remaining();
+            if (this.queuedBytes.addAndGet(size) > maxQueuedBytes) {
+                this.queuedBytes.addAndGet(-size);
+                // A peer that cannot keep up is dropped and caught up again by reconnecting.
+                runOnSelector(() -> closeConnection(this, new IOException("Outbound queue to peer is full")));
+                return;
+            }
+            this.writeQueue.add(frame);
+            if (this.writeRequested.compareAndSet(false, true)) {
+                runOnSelector(this::enableWrite);
+            }
+        }
+
+        public void sendChallenge() {
+            enqueue(encodeFrame(FRAME_CHALLENGE, this.challenge));
+        }
+
+        private void sendHello(byte[] peerChallenge) throws IOException {
+            if (this.helloSent) {
+                return;
+            }
+            if (peerChallenge.length != CHALLENGE_SIZE) {
+                throw new IOException("Invalid cluster challenge");
+            }
+            this.helloSent = true;
+            byte[] nodeIdBytes = nodeId.getBytes(StandardCharsets.UTF_8);
+            byte[] signature = sign(peerChallenge, nodeIdBytes);
+            byte[] body = Arrays.copyOf(nodeIdBytes, nodeIdBytes.length + signature.length);
+            System.arraycopy(signature, 0, body, nodeIdBytes.length, signature.length);
+            enqueue(encodeFrame(FRAME_HELLO, body));
+        }
+
+        public void finishConnect() throws IOException {
+            if (!this.channel.finishConnect()) {
+                return;
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+            sendChallenge();
+        }
+
+        public void read() throws IOException {
+            if (this.channel.read(this.readBuffer) < 0) {
+                closeConnection(this, null);
+                return;
+            }
+            this.readBuffer.flip();
+            while (this.readBuffer.remaining() >= FRAME_HEADER_SIZE) {
+                int position = this.readBuffer.position();
+                int length = this.readBuffer.getInt(position);
+                int maxLength = this.peerNodeId != null ? MAX_FRAME_SIZE : MAX_HELLO_FRAME_SIZE;
+                if (length < 0 || length > maxLength) {
+                    throw new IOException("Invalid cluster frame length: " + length);
+                }
+                if (this.readBuffer.remaining() < FRAME_HEADER_SIZE + length) {
+                    break;
+                }
+                byte kind = this.readBuffer.get(position + Integer.BYTES);
+                byte[] body = new byte[length];
+                this.readBuffer.position(position + FRAME_HEADER_SIZE);
+                this.readBuffer.get(body);
+                handleFrame(kind, body);
+                if (this.closed) {
+                    return;
+                }
+            }
+            int needed = this.readBuffer.remaining() >= FRAME_HEADER_SIZE
+                    ? FRAME_HEADER_SIZE + this.readBuffer.getInt(this.readBuffer.position())
+                    : READ_BUFFER_SIZE;
+            if (needed > this.readBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                larger.put(this.readBuffer);
+                this.readBuffer = larger;
+            } else {
+                this.readBuffer.compact();
+            }
+        }
+
+        public void write() throws IOException {
+            List<ByteBuffer> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+            for (ByteBuffer frame : this.writeQueue) {
+                if (batch.size() == WRITE_BATCH_SIZE) {
+                    break;
+                }
+                batch.add(frame);
+            }
+            if (!batch.isEmpty()) {
+                this.channel.write(batch.toArray(new ByteBuffer[0]));
+                for (ByteBuffer frame : batch) {
+                    if (frame.hasRemaining()) {
+                        // The socket buffer is full, so the rest goes out once it drains.
+                        return;
+                    }
+                    this.writeQueue.poll();
+                    this.queuedBytes.addAndGet(-frame.limit());
+                }
+            }
+            if (!this.writeQueue.isEmpty()) {
+                return;
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+            this.writeRequested.set(false);
+            // A frame queued after the check above found no write pending.
+            if (!this.writeQueue.isEmpty() && this.writeRequested.compareAndSet(false, true)) {
+                enableWrite();
+            }
+        }
+
+        private void enableWrite() {
+            if (this.closed || this.key == null || !this.key.isValid()) {
+                return;
+            }
+            // Connections still being opened start writing once connected.
+            if ((this.key.interestOps() & SelectionKey.OP_CONNECT) != 0) {
+                this.writeRequested.set(false);
+                return;
+            }
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        private void handleFrame(byte kind, byte[] body) throws IOException {
+            switch (kind) {
+                case FRAME_CHALLENGE:
+                    sendHello(body);
+                    break;
+                case FRAME_HELLO:
+                    handleHello(this, body);
+                    break;
+                case FRAME_MESSAGE:
+                    String peer = this.peerNodeId;
+                    if (peer == null) {
+                        throw new IOException("Cluster peer sent a message before its hello");
+                    }
+                    dispatch(() -> dispatchMessage(peer, body));
+                    break;
+                default:
+                    throw new IOException("Unknown cluster frame kind: " + kind);
+            }
+        }
+
+    }
+
+}
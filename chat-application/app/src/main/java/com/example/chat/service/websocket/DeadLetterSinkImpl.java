@@ -0,0 +1,23 @@
+package com.example.chat.service.websocket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketMessage;
+
+import com.example.chat.service.DeadLetterSink;
+
+@Component
+public class DeadLetterSinkImpl implements DeadLetterSink {
+
+    private static final Logger logger = LogManager.getLogger(DeadLetterSinkImpl.class);
+
+    @Override
+    public void accept(String sessionId, WebSocketMessage<?> message, Exception cause) {
+        logger.warn("Dropped message of {} bytes for session {}: {}",
+                message.getPayloadLength(),
+                sessionId,
+                cause.toString());
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.example.chat.service.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Component
+public class FrameCompressor {
+
+    public static final byte ENCODING_IDENTITY = 0;
+    public static final byte ENCODING_DEFLATE = 1;
+
+    // Clients inflate with the same preset dictionary (raw DEFLATE, no zlib header). It holds
+    // the keys and kinds every frame repeats, most frequent last.
+    public static final byte[] DICTIONARY = ("\"rooms\":[\"Room#fetchRooms\"Room#createRoom\"error\",\"message\":"
+            + "\"Auth#authUser\",\"username\":\"Room#leave\"Room#join\"Room#sendChat\",\"content\":"
+            + "{\"kind\":\",\"roomId\":\",\"name\":\",\"timestamp\":\",\"user\":{\"sessionId\":\""
+            + ",\"name\":\",\"joinedTime\":\"")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    @Value("${message-broker.outbound.compression-threshold:1024}")
+    private int threshold;
+
+    public FrameCompressor(@Value("${message-broker.outbound.compression-level:6}") int level) {
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    public int getThreshold() {
+        return this.threshold;
+    }
+
+    // Returns the encoding byte followed by the payload, deflated if it is at least as large
+    // as the threshold and actually shrinks.
+    public byte[] encode(byte[] payload) {
+        if (payload.length >= this.threshold) {
+            byte[] deflated = deflate(payload);
+            if (deflated != null) {
+                return deflated;
+            }
+        }
+        byte[] frame = new byte[payload.length + 1];
+        frame[0] = ENCODING_IDENTITY;
+        System.arraycopy(payload, 0, frame, 1, payload.length);
+        return frame;
+    }
+
+    // Returns the encoding byte followed by the deflated payload, or null if deflating does
+    // not make the payload smaller.
+    public byte[] deflate(byte[] payload) {
+        Deflater deflater = this.deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(payload.length / 2 + 16);
+        output.write(ENCODING_DEFLATE);
+        byte[] buffer = new byte[Math.min(payload.length + 64, 8192)];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            output.write(buffer, 0, length);
+            if (output.size() > payload.length) {
+                return null;
+            }
+        }
+        return output.toByteArray();
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.example.chat.service.websocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MessageBrokerMetrics {
+
+    private final LongAdder retries;
+    private final LongAdder drops;
+    private final LongAdder retryWaitNanos;
+    private final AtomicInteger throttledSessions;
+    private final LongAdder overflowDrops;
+    private final LongAdder coalesced;
+    private final LongAdder overflowCloses;
+
+    MessageBrokerMetrics() {
+        this.retries = new LongAdder();
+        this.drops = new LongAdder();
+        this.retryWaitNanos = new LongAdder();
+        this.throttledSessions = new AtomicInteger();
+        this.overflowDrops = new LongAdder();
+        this.coalesced = new LongAdder();
+        this.overflowCloses = new LongAdder();
+    }
+
+    public long getRetries() {
+        return this.retries.sum();
+    }
+
+    public long getDrops() {
+        return this.drops.sum();
+    }
+
+    public long getRetryWaitTime(TimeUnit unit) {
+        return unit.convert(this.retryWaitNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    public int getThrottledSessions() {
+        return this.throttledSessions.get();
+    }
+
+    public long getOverflowDrops() {
+        return this.overflowDrops.sum();
+    }
+
+    public long getCoalesced() {
+        return this.coalesced.sum();
+    }
+
+    public long getOverflowCloses() {
+        return this.overflowCloses.sum();
+    }
+
+    void recordRetry() {
+        this.retries.increment();
+    }
+
+    void recordDrop() {
+        this.drops.increment();
+    }
+
+    void recordRetryWait(long nanos) {
+        this.retryWaitNanos.add(nanos);
+    }
+
+    void recordThrottled(boolean throttled) {
+        if (throttled) {
+            this.throttledSessions.incrementAndGet();
+        } else {
+            this.throttledSessions.decrementAndGet();
+        }
+    }
+
+    void recordOverflowDrop() {
+        this.overflowDrops.increment();
+    }
+
+    void recordCoalesced() {
+        this.coalesced.increment();
+    }
+
+    void recordOverflowClose() {
+        this.overflowCloses.increment();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "MessageBrokerMetrics[retries=%d, drops=%d, retryWaitMillis=%d, throttledSessions=%d, "
+                        + "overflowDrops=%d, coalesced=%d, overflowCloses=%d]",
+                getRetries(),
+                getDrops(),
+                getRetryWaitTime(TimeUnit.MILLISECONDS),
+                getThrottledSessions(),
+                getOverflowDrops(),
+                getCoalesced(),
+                getOverflowCloses());
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.example.chat.service.websocket;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import org.springframework.stereotype.Component;
+
+import com.example.chat.service.MessageClock;
+
+@Component
+public class MessageClockImpl implements MessageClock {
+
+    private final Clock clock;
+
+    // Events sent within the same millisecond share one formatted string.
+    private volatile Tick lastTick;
+
+    public MessageClockImpl() {
+        this(Clock.systemDefaultZone());
+    }
+
+    public MessageClockImpl(Clock clock) {
+        this.clock = clock;
+        this.lastTick = new Tick(Long.MIN_VALUE, null);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return this.clock.millis();
+    }
+
+    @Override
+    public LocalDateTime now() {
+        return toLocalDateTime(this.clock.millis());
+    }
+
+    @Override
+    public String currentTimestamp() {
+        long millis = this.clock.millis();
+        Tick tick = this.lastTick;
+        if (tick.millis != millis) {
+            tick = new Tick(millis, toLocalDateTime(millis).format(DateTimeFormatter.ISO_DATE_TIME));
+            this.lastTick = tick;
+        }
+        return tick.timestamp;
+    }
+
+    private LocalDateTime toLocalDateTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), this.clock.getZone());
+    }
+
+    private static class Tick {
+
+        private final long millis;
+        private final String timestamp;
+
+        private Tick(long millis, String timestamp) {
+            this.millis = millis;
+            this.timestamp = timestamp;
+        }
+
+    }
+
+}
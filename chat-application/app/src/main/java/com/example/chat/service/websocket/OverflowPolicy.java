@@ -0,0 +1,23 @@
+package com.example.chat.service.websocket;
+
+import org.springframework.web.socket.CloseStatus;
+
+public enum OverflowPolicy {
+    DROP_OLDEST(null),
+    DROP_NEW(null),
+    COALESCE(null),
+    CLOSE_POLICY_VIOLATION(CloseStatus.POLICY_VIOLATION),
+    CLOSE_SERVICE_OVERLOAD(CloseStatus.SERVICE_OVERLOAD),
+    ;
+
+    private final CloseStatus closeStatus;
+
+    private OverflowPolicy(CloseStatus closeStatus) {
+        this.closeStatus = closeStatus;
+    }
+
+    public CloseStatus getCloseStatus() {
+        return this.closeStatus;
+    }
+
+}
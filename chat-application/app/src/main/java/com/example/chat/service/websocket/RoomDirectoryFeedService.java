@@ -0,0 +1,132 @@
+package com.example.chat.service.websocket;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.chat.entity.RoomDirectoryChange;
+import com.example.chat.event.websocket.WebSocketSessionRemoveListener;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.service.MessageBroker;
+import com.example.chat.service.RoomDirectoryFeed;
+import com.example.chat.websocket.WebSocketEventListenerManager;
+
+@Service
+public class RoomDirectoryFeedService
+        implements RoomDirectoryFeed,
+                   WebSocketSessionRemoveListener,
+                   DisposableBean {
+
+    private static final Logger logger = LogManager.getLogger(RoomDirectoryFeedService.class);
+
+    private final RoomRepository roomRepository;
+    private final WebSocketEventListenerManager webSocketEventListenerManager;
+    private final MessageBroker messageBroker;
+    private final RoomMessageEncoder roomMessageEncoder;
+    private final Set<String> subscribers;
+    private final ScheduledExecutorService executorService;
+    private final AtomicBoolean flushScheduled;
+
+    // Only touched by the single feed thread.
+    private long publishedVersion;
+
+    @Value("${room-directory.feed.coalesce-window:100}")
+    private long coalesceWindow;
+
+    public RoomDirectoryFeedService(
+            RoomRepository roomRepository,
+            WebSocketEventListenerManager webSocketEventListenerManager,
+            MessageBroker messageBroker,
+            RoomMessageEncoder roomMessageEncoder) {
+        this.roomRepository = roomRepository;
+        this.webSocketEventListenerManager = webSocketEventListenerManager;
+        this.messageBroker = messageBroker;
+        this.roomMessageEncoder = roomMessageEncoder;
+        this.subscribers = ConcurrentHashMap.newKeySet();
+        this.executorService = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("Room Directory Feed"));
+        this.flushScheduled = new AtomicBoolean();
+        this.publishedVersion = roomRepository.getDirectoryVersion();
+        this.webSocketEventListenerManager.addListener(this);
+    }
+
+    @Override
+    public boolean subscribe(String sessionId) {
+        return this.subscribers.add(sessionId);
+    }
+
+    @Override
+    public boolean unsubscribe(String sessionId) {
+        return this.subscribers.remove(sessionId);
+    }
+
+    @Override
+    public boolean isSubscribed(String sessionId) {
+        return this.subscribers.contains(sessionId);
+    }
+
+    @Override
+    public void publishChanges() {
+        // Every change within the window is picked up by the one flush already scheduled.
+        if (!this.flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.executorService.schedule(this::flush, this.coalesceWindow, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            this.flushScheduled.set(false);
+        }
+    }
+
+    @Override
+    public void onSessionRemove(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        this.subscribers.remove(session.getId());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.webSocketEventListenerManager.removeListener(this);
+        this.executorService.shutdown();
+        this.subscribers.clear();
+    }
+
+    private void flush() {
+        // Cleared first, so changes recorded while flushing schedule another flush.
+        this.flushScheduled.set(false);
+        Optional<List<RoomDirectoryChange>> changes = this.roomRepository.findChangesSince(this.publishedVersion);
+        String message;
+        if (changes.isEmpty()) {
+            long version = this.roomRepository.getDirectoryVersion();
+            logger.warn("Room directory feed fell behind from version {} to {}", this.publishedVersion, version);
+            message = this.roomMessageEncoder.encodeDirectoryResync(version);
+            this.publishedVersion = version;
+        } else {
+            List<RoomDirectoryChange> pending = changes.get();
+            if (pending.isEmpty()) {
+                return;
+            }
+            long version = pending.get(pending.size() - 1).getVersion();
+            message = this.roomMessageEncoder.encodeDirectoryChanges(version, RoomDirectoryChange.collapse(pending));
+            this.publishedVersion = version;
+        }
+        if (!this.subscribers.isEmpty()) {
+            this.messageBroker.broadcast(this.subscribers, message);
+        }
+    }
+
+}
@@ -1,241 +1,405 @@
 package com.example.chat.service.websocket;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.WebSocketSession;
 
+import com.example.chat.entity.ChatLogPage;
 import com.example.chat.entity.Room;
+import com.example.chat.entity.RoomDirectoryChange;
+import com.example.chat.entity.SessionContext;
 import com.example.chat.entity.User;
-import com.example.chat.entity.UserAuthState;
-import com.example.chat.event.websocket.WebSocketJsonMessageReceiveListener;
+import com.example.chat.entity.websocket.WebSocketCreateRoomRequest;
+import com.example.chat.entity.websocket.WebSocketFetchRoomsRequest;
+import com.example.chat.entity.websocket.WebSocketHistoryRequest;
+import com.example.chat.entity.websocket.WebSocketJoinRoomRequest;
+import com.example.chat.entity.websocket.WebSocketLeaveRoomRequest;
+import com.example.chat.entity.websocket.WebSocketRequest;
+import com.example.chat.entity.websocket.WebSocketSendChatRequest;
+import com.example.chat.entity.websocket.WebSocketSubscribeDirectoryRequest;
+import com.example.chat.entity.websocket.WebSocketUnsubscribeDirectoryRequest;
+import com.example.chat.event.websocket.WebSocketSessionRemoveListener;
+import com.example.chat.repository.ChatLogRepository;
 import com.example.chat.repository.RoomRepository;
-import com.example.chat.repository.UserAuthRepository;
-import com.example.chat.repository.UserRepository;
+import com.example.chat.repository.StateSnapshotRepository;
+import com.example.chat.service.ClusterMessageBroker;
 import com.example.chat.service.MessageBroker;
+import com.example.chat.service.MessageClock;
+import com.example.chat.service.RoomDirectoryFeed;
 import com.example.chat.util.JsonNodeUtils;
+import com.example.chat.util.JsonTextBuilder;
+import com.example.chat.websocket.WebSocketCommandHandler;
+import com.example.chat.websocket.WebSocketCommandRouter;
 import com.example.chat.websocket.WebSocketEventListenerManager;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
 @Service
-public class RoomLifecycleService implements WebSocketJsonMessageReceiveListener, DisposableBean {
+public class RoomLifecycleService implements WebSocketSessionRemoveListener, DisposableBean {
 
     private static final Logger logger = LogManager.getLogger(RoomLifecycleService.class);
 
-    private final UserAuthRepository userAuthRepository;
-    private final UserRepository userRepository;
     private final RoomRepository roomRepository;
     private final WebSocketEventListenerManager webSocketEventListenerManager;
+    private final WebSocketCommandRouter webSocketCommandRouter;
     private final MessageBroker messageBroker;
+    private final RoomMessageEncoder roomMessageEncoder;
+    private final MessageClock messageClock;
+    private final RoomDirectoryFeed roomDirectoryFeed;
+    private final ChatLogRepository chatLogRepository;
+    private final StateSnapshotRepository stateSnapshotRepository;
+    private final ClusterMessageBroker clusterMessageBroker;
+    private final List<Class<? extends WebSocketRequest>> commandTypes;
+
+    @Value("${room-directory.default-page-size:100}")
+    private int defaultPageSize;
+
+    @Value("${room-directory.max-page-size:500}")
+    private int maxPageSize;
+
+    @Value("${chat-log.history.default-size:50}")
+    private int defaultHistorySize;
+
+    @Value("${chat-log.history.max-size:200}")
+    private int maxHistorySize;
 
     public RoomLifecycleService(
-            UserAuthRepository userAuthRepository,
-            UserRepository userRepository,
             RoomRepository roomRepository,
             WebSocketEventListenerManager webSocketEventListenerManager,
-            MessageBroker messageBroker) {
-        this.userAuthRepository = userAuthRepository;
-        this.userRepository = userRepository;
+            WebSocketCommandRouter webSocketCommandRouter,
+            MessageBroker messageBroker,
+            RoomMessageEncoder roomMessageEncoder,
+            MessageClock messageClock,
+            RoomDirectoryFeed roomDirectoryFeed,
+            ChatLogRepository chatLogRepository,
+            StateSnapshotRepository stateSnapshotRepository,
+            ClusterMessageBroker clusterMessageBroker) {
         this.roomRepository = roomRepository;
         this.webSocketEventListenerManager = webSocketEventListenerManager;
+        this.webSocketCommandRouter = webSocketCommandRouter;
         this.messageBroker = messageBroker;
+        this.roomMessageEncoder = roomMessageEncoder;
+        this.messageClock = messageClock;
+        this.roomDirectoryFeed = roomDirectoryFeed;
+        this.chatLogRepository = chatLogRepository;
+        this.stateSnapshotRepository = stateSnapshotRepository;
+        this.clusterMessageBroker = clusterMessageBroker;
+        this.commandTypes = new ArrayList<>();
         this.webSocketEventListenerManager.addListener(this);
+        registerCommand(WebSocketFetchRoomsRequest.class, this::fetchRooms);
+        registerCommand(WebSocketCreateRoomRequest.class, this::createRoom);
+        registerCommand(WebSocketJoinRoomRequest.class, this::joinRoom);
+        registerCommand(WebSocketLeaveRoomRequest.class, this::leaveRoom);
+        registerCommand(WebSocketSendChatRequest.class, this::sendChat);
+        registerCommand(WebSocketHistoryRequest.class, this::fetchHistory);
+        registerCommand(WebSocketSubscribeDirectoryRequest.class, this::subscribeDirectory);
+        registerCommand(WebSocketUnsubscribeDirectoryRequest.class, this::unsubscribeDirectory);
     }
 
-    @Override
-    public void onJsonMessageReceive(WebSocketSession session, JsonNode jsonData) throws Exception {
-        String sessionId = session.getId();
-        if (this.userAuthRepository
-                .findEntityByKey(sessionId)
-                .filter(auth -> auth.getUserAuthState() == UserAuthState.SUCCESS)
-                .isEmpty()) {
-            if (!this.userRepository.containsEntityByKey(sessionId)) {
+    public void fetchRooms(SessionContext context, WebSocketFetchRoomsRequest request) {
+        String sessionId = context.getSessionId();
+        String prefix = request.getPrefix();
+        Long sinceVersion = request.getSinceVersion();
+        if (sinceVersion != null) {
+            Optional<List<RoomDirectoryChange>> changes = this.roomRepository.findChangesSince(sinceVersion);
+            if (changes.isPresent()) {
+                sendRoomChanges(sessionId, sinceVersion, prefix, changes.get());
                 return;
             }
-            logger.warn("Unauthenticated User tried to access room service: {}", sessionId);
-            JsonNode errorMessageData = JsonNodeUtils.crateErrorMessageData(
+            // The changes are no longer retained, so the client starts over from the first page.
+        }
+        int limit = request.getLimit() != null && request.getLimit() > 0
+                ? Math.min(request.getLimit(), this.maxPageSize)
+                : this.defaultPageSize;
+        String cursor = sinceVersion == null ? request.getCursor() : null;
+        String message = createRoomPage("Room#fetchRooms", sessionId, prefix, cursor, limit);
+        if (cursor == null) {
+            // A newer first page supersedes one that is still queued.
+            this.messageBroker.sendCoalescingMessage(sessionId, "Room#fetchRooms:" + prefix, message);
+        } else {
+            this.messageBroker.sendMessage(sessionId, message);
+        }
+    }
+
+    public void subscribeDirectory(SessionContext context, WebSocketSubscribeDirectoryRequest request) {
+        String sessionId = context.getSessionId();
+        // Subscribing before the snapshot is taken means no change can fall between the two.
+        this.roomDirectoryFeed.subscribe(sessionId);
+        String message = createRoomPage("Room#subscribeDirectory", sessionId, null, null, this.defaultPageSize);
+        this.messageBroker.sendMessage(sessionId, message);
+    }
+
+    public void unsubscribeDirectory(SessionContext context, WebSocketUnsubscribeDirectoryRequest request) {
+        this.roomDirectoryFeed.unsubscribe(context.getSessionId());
+    }
+
+    public void createRoom(SessionContext context, WebSocketCreateRoomRequest request) {
+        String sessionId = context.getSessionId();
+        String roomName = request.getName();
+        if (roomName == null || roomName.isBlank()) {
+            String errorMessage = JsonNodeUtils.createErrorMessage(
                     sessionId,
-                    "unauthenticated user tried to access room service");
-            this.messageBroker.sendMessage(sessionId, errorMessageData.toString());
+                    "invalid room name",
+                    this.messageClock);
+            this.messageBroker.sendMessage(sessionId, errorMessage);
             return;
         }
-        String kind = jsonData.get("kind").asText();
-        if (kind == null) {
+        int recentMessageCount = request.getRecentMessages() != null ? request.getRecentMessages() : 0;
+        // Journaled before anyone can join the room, so its members are never replayed
+        // ahead of it.
+        Optional<Room> roomOptional = this.roomRepository.createIfAbsent(
+                roomName,
+                recentMessageCount,
+                this.stateSnapshotRepository::recordRoomCreated);
+        if (roomOptional.isEmpty()) {
+            String errorMessage = JsonNodeUtils.createErrorMessage(
+                    sessionId,
+                    "room already exists",
+                    this.messageClock);
+            this.messageBroker.sendMessage(sessionId, errorMessage);
             return;
         }
-        if (!kind.startsWith("Room#")) {
+        Room room = roomOptional.get();
+        this.clusterMessageBroker.publishRoomCreated(room);
+        this.roomDirectoryFeed.publishChanges();
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        buffer.append("{\"kind\":\"Room#createRoom\",");
+        JsonTextBuilder.appendField(buffer, "roomId", room.getId().toString()).append(',');
+        JsonTextBuilder.appendField(buffer, "name", room.getName()).append('}');
+        this.messageBroker.sendMessage(sessionId, JsonTextBuilder.release(buffer));
+    }
+
+    public void joinRoom(SessionContext context, WebSocketJoinRoomRequest request) {
+        UUID roomId = request.getRoomId();
+        User user = context.getUser();
+        Optional<Room> roomOptional = findRoom(context.getSessionId(), roomId);
+        if (roomOptional.isEmpty()) {
             return;
         }
-        if (kind.equals("Room#fetchRooms")) {
-            fetchRooms(sessionId);
-            return;
+        Room room = roomOptional.get();
+        boolean added;
+        // Membership changes of a room are journaled in the order they are made, which
+        // takes the room's monitor around both.
+        synchronized (room) {
+            // A room removed or merged into another since it was looked up takes no members.
+            if (this.roomRepository.findEntityByKey(roomId).orElse(null) != room) {
+                sendRoomDoesNotExist(context.getSessionId());
+                return;
+            }
+            added = room.getMembers().add(user);
+            if (added) {
+                this.stateSnapshotRepository.recordMemberJoined(roomId, user.getSessionId());
+            }
         }
-        if (kind.equals("Room#createRoom")) {
-            createRoom(sessionId, jsonData);
-            return;
+        context.addJoinedRoom(roomId);
+        if (added) {
+            // Sent ahead of the join event, so peers deliver the room's events from now on.
+            this.clusterMessageBroker.publishMemberCount(room);
         }
-        if (kind.equals("Room#join")) {
-            joinRoom(sessionId, jsonData);
-            return;
+        String message = this.roomMessageEncoder.encodeJoin(room, user);
+        this.clusterMessageBroker.publishEvent(room, message);
+        // Taken after joining, so a chat racing with the join is repeated rather than missed.
+        if (added && room.getRecentMessages().size() > 0) {
+            String recentMessages = this.roomMessageEncoder.encodeRecentMessages(room);
+            this.messageBroker.sendMessage(context.getSessionId(), recentMessages);
         }
-        if (kind.equals("Room#leave")) {
-            leaveRoom(sessionId, jsonData);
+    }
+
+    public void leaveRoom(SessionContext context, WebSocketLeaveRoomRequest request) {
+        UUID roomId = request.getRoomId();
+        User user = context.getUser();
+        Optional<Room> roomOptional = findRoom(context.getSessionId(), roomId);
+        if (roomOptional.isEmpty()) {
             return;
         }
-        if (kind.equals("Room#sendChat")) {
-            sendChat(sessionId, jsonData);
-            return;
+        Room room = roomOptional.get();
+        String message = this.roomMessageEncoder.encodeLeave(room, user);
+        this.clusterMessageBroker.publishEvent(room, message);
+        boolean removed;
+        synchronized (room) {
+            removed = room.getMembers().remove(user);
+            if (removed) {
+                this.stateSnapshotRepository.recordMemberLeft(roomId, user.getSessionId());
+            }
         }
-        JsonNode errorMessageData = JsonNodeUtils.crateErrorMessageData(sessionId, "unknown room service command");
-        this.messageBroker.sendMessage(sessionId, errorMessageData.toString());
-    }
-
-    public void fetchRooms(String sessionId) {
-        ObjectNode jsonData = JsonNodeFactory.instance.objectNode()
-                .put("kind", "Room#fetchRooms")
-                .put("sessionId", sessionId);
-        ArrayNode rooms = jsonData.putArray("rooms");
-        rooms.addAll(this.roomRepository
-                .getAllEntities()
-                .stream()
-                .map(room -> JsonNodeFactory.instance.objectNode()
-                        .put("roomId", room.getId().toString())
-                        .put("name", room.getName()))
-                .toList());
-        this.messageBroker.sendMessage(sessionId, jsonData.toString());
-    }
-
-    public void createRoom(String sessionId, JsonNode jsonData) {
-        String roomName = jsonData.get("name").asText();
-        if (this.roomRepository.findEntityByName(roomName).isPresent()) {
-            JsonNode errorMessageData = JsonNodeUtils.crateErrorMessageData(
-                    sessionId,
-                    "room already exists");
-            this.messageBroker.sendMessage(sessionId, errorMessageData.toString());
-            return;
+        if (removed) {
+            this.clusterMessageBroker.publishMemberCount(room);
         }
-        Room room = new Room(UUID.randomUUID(), roomName, new CopyOnWriteArrayList<>());
-        this.roomRepository.addEntity(room);
-        JsonNode responseData = JsonNodeFactory.instance.objectNode()
-                .put("kind", "Room#createRoom")
-                .put("roomId", room.getId().toString())
-                .put("name", room.getName());
-        this.messageBroker.sendMessage(sessionId, responseData.toString());
-    }
-
-    public void joinRoom(String sessionId, JsonNode jsonData) {
-        UUID roomId = UUID.fromString(jsonData.get("roomId").asText());
-        User user = this.userRepository
-                .findEntityByKey(sessionId)
-                .orElseThrow();
-        Optional<Room> roomOptional = this.roomRepository.findEntityByKey(roomId);
+        context.removeJoinedRoom(roomId);
+        removeRoomIfEmpty(room);
+    }
+
+    public void sendChat(SessionContext context, WebSocketSendChatRequest request) {
+        UUID roomId = request.getRoomId();
+        User user = context.getUser();
+        Optional<Room> roomOptional = findRoom(context.getSessionId(), roomId);
         if (roomOptional.isEmpty()) {
-            JsonNode errorMessageData = JsonNodeUtils.crateErrorMessageData(
-                    sessionId,
-                    "room does not exist");
-            this.messageBroker.sendMessage(sessionId, errorMessageData.toString());
             return;
         }
         Room room = roomOptional.get();
-        room.getUsers().add(user);
-        ObjectNode responseData = JsonNodeFactory.instance.objectNode()
-                .put("kind", "Room#join")
-                .put("roomId", roomId.toString())
-                .put("timestamp", LocalDateTime
-                        .now()
-                        .format(DateTimeFormatter.ISO_DATE_TIME));
-        responseData.putObject("user")
-                .put("sessionId", user.getSessionId())
-                .put("name", user.getName())
-                .put("joinedTime", user
-                        .getJoinedTime()
-                        .format(DateTimeFormatter.ISO_DATE_TIME));
-        for (User u : room.getUsers()) {
-            this.messageBroker.sendMessage(u.getSessionId(), responseData.toString());
-        }
-    }
-
-    public void leaveRoom(String sessionId, JsonNode jsonData) {
-        UUID roomId = UUID.fromString(jsonData.get("roomId").asText());
-        User user = this.userRepository
-                .findEntityByKey(sessionId)
-                .orElseThrow();
-        Optional<Room> roomOptional = this.roomRepository.findEntityByKey(roomId);
+        String message = this.roomMessageEncoder.encodeChat(room, user, request.getContent());
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        this.chatLogRepository.append(roomId, payload);
+        room.getRecentMessages().append(payload);
+        this.clusterMessageBroker.publishChat(room, message, payload);
+    }
+
+    public void fetchHistory(SessionContext context, WebSocketHistoryRequest request) {
+        String sessionId = context.getSessionId();
+        UUID roomId = request.getRoomId();
+        Optional<Room> roomOptional = findRoom(sessionId, roomId);
         if (roomOptional.isEmpty()) {
-            JsonNode errorMessageData = JsonNodeUtils.crateErrorMessageData(
-                    sessionId,
-                    "room does not exist");
-            this.messageBroker.sendMessage(sessionId, errorMessageData.toString());
             return;
         }
-        Room room = roomOptional.get();
-        ObjectNode responseData = JsonNodeFactory.instance.objectNode()
-                .put("kind", "Room#leave")
-                .put("roomId", roomId.toString())
-                .put("timestamp", LocalDateTime
-                        .now()
-                        .format(DateTimeFormatter.ISO_DATE_TIME));
-        responseData.putObject("user")
-                .put("sessionId", user.getSessionId())
-                .put("name", user.getName())
-                .put("joinedTime", user
-                        .getJoinedTime()
-                        .format(DateTimeFormatter.ISO_DATE_TIME));
-        for (User u : room.getUsers()) {
-            this.messageBroker.sendMessage(u.getSessionId(), responseData.toString());
-        }
-        room.getUsers().remove(user);
-        if (room.getUsers().isEmpty()) {
-            this.roomRepository.removeEntity(room);
-            logger.info("Room {} removed because no users have joined it.", roomId);
+        if (!context.getJoinedRoomIds().contains(roomId)) {
+            String errorMessage = JsonNodeUtils.createErrorMessage(
+                    sessionId,
+                    "user has not joined the room",
+                    this.messageClock);
+            this.messageBroker.sendMessage(sessionId, errorMessage);
+            return;
         }
+        int limit = request.getLimit() != null && request.getLimit() > 0
+                ? Math.min(request.getLimit(), this.maxHistorySize)
+                : this.defaultHistorySize;
+        long before = request.getBefore() != null ? request.getBefore() : Long.MAX_VALUE;
+        ChatLogPage page = this.chatLogRepository.readBefore(roomId, before, limit);
+        String message = this.roomMessageEncoder.encodeHistory(roomOptional.get(), page);
+        this.messageBroker.sendMessage(sessionId, message);
     }
 
-    public void sendChat(String sessionId, JsonNode jsonData) {
-        UUID roomId = UUID.fromString(jsonData.get("roomId").asText());
-        User user = this.userRepository
-                .findEntityByKey(sessionId)
-                .orElseThrow();
-        Optional<Room> roomOptional = this.roomRepository.findEntityByKey(roomId);
-        if (roomOptional.isEmpty()) {
-            JsonNode errorMessageData = JsonNodeUtils.crateErrorMessageData(
-                    sessionId,
-                    "room does not exist");
-            this.messageBroker.sendMessage(sessionId, errorMessageData.toString());
+    @Override
+    public void onSessionRemove(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        // The context stays attached to the session after the repositories drop it, so the
+        // joined rooms are still known here regardless of listener order.
+        SessionContext context = SessionContext.fromSession(session);
+        if (context == null) {
             return;
         }
-        ObjectNode responseData = JsonNodeFactory.instance.objectNode()
-                .put("kind", "Room#sendChat")
-                .put("roomId", roomId.toString())
-                .put("timestamp", LocalDateTime
-                        .now()
-                        .format(DateTimeFormatter.ISO_DATE_TIME))
-                .put("content", jsonData.get("content").asText());
-        responseData.putObject("user")
-                .put("sessionId", user.getSessionId())
-                .put("name", user.getName())
-                .put("joinedTime", user
-                        .getJoinedTime()
-                        .format(DateTimeFormatter.ISO_DATE_TIME));
-        Room room = roomOptional.get();
-        for (User u : room.getUsers()) {
-            this.messageBroker.sendMessage(u.getSessionId(), responseData.toString());
+        String sessionId = context.getSessionId();
+        for (UUID roomId : context.getJoinedRoomIds()) {
+            context.removeJoinedRoom(roomId);
+            Optional<Room> roomOptional = this.roomRepository.findEntityByKey(roomId);
+            if (roomOptional.isEmpty()) {
+                continue;
+            }
+            Room room = roomOptional.get();
+            User user;
+            synchronized (room) {
+                user = room.getMembers().removeBySessionId(sessionId);
+                if (user != null) {
+                    this.stateSnapshotRepository.recordMemberLeft(roomId, sessionId);
+                }
+            }
+            if (user == null) {
+                continue;
+            }
+            this.clusterMessageBroker.publishMemberCount(room);
+            String message = this.roomMessageEncoder.encodeLeave(room, user);
+            this.clusterMessageBroker.publishEvent(room, message);
+            removeRoomIfEmpty(room);
         }
     }
 
     @Override
     public void destroy() throws Exception {
         this.webSocketEventListenerManager.removeListener(this);
+        this.commandTypes.forEach(this.webSocketCommandRouter::unregisterHandler);
+    }
+
+    private <R extends WebSocketRequest> void registerCommand(
+            Class<R> requestClass,
+            WebSocketCommandHandler<R> handler) {
+        this.webSocketCommandRouter.registerHandler(requestClass, requireAuthentication(handler));
+        this.commandTypes.add(requestClass);
+    }
+
+    private <R extends WebSocketRequest> WebSocketCommandHandler<R> requireAuthentication(
+            WebSocketCommandHandler<R> handler) {
+        return (context, request) -> {
+            if (context.isAuthenticated()) {
+                handler.handle(context, request);
+                return;
+            }
+            String sessionId = context.getSessionId();
+            logger.warn("Unauthenticated User tried to access room service: {}", sessionId);
+            String errorMessage = JsonNodeUtils.createErrorMessage(
+                    sessionId,
+                    "unauthenticated user tried to access room service",
+                    this.messageClock);
+            this.messageBroker.sendMessage(sessionId, errorMessage);
+        };
+    }
+
+    private String createRoomPage(String kind, String sessionId, String prefix, String cursor, int limit) {
+        // The version is read before the page, so changes racing with it show up again in
+        // the next delta instead of being lost.
+        long version = this.roomRepository.getDirectoryVersion();
+        List<Room> rooms = this.roomRepository.findEntitiesByNamePrefix(prefix, cursor, limit + 1);
+        String nextCursor = null;
+        if (rooms.size() > limit) {
+            rooms = rooms.subList(0, limit);
+            nextCursor = rooms.get(limit - 1).getName();
+        }
+        return this.roomMessageEncoder.encodeRoomPage(kind, sessionId, version, rooms, nextCursor);
+    }
+
+    private void sendRoomChanges(
+            String sessionId,
+            long sinceVersion,
+            String prefix,
+            List<RoomDirectoryChange> changes) {
+        long version = changes.isEmpty() ? sinceVersion : changes.get(changes.size() - 1).getVersion();
+        List<RoomDirectoryChange> netChanges = RoomDirectoryChange.collapse(changes);
+        if (prefix != null) {
+            netChanges = netChanges
+                    .stream()
+                    .filter(change -> change.getRoom().getName().startsWith(prefix))
+                    .toList();
+        }
+        String message = this.roomMessageEncoder.encodeRoomChanges(sessionId, version, netChanges);
+        this.messageBroker.sendMessage(sessionId, message);
+    }
+
+    private Optional<Room> findRoom(String sessionId, UUID roomId) {
+        Optional<Room> roomOptional = roomId != null
+                ? this.roomRepository.findEntityByKey(roomId)
+                : Optional.empty();
+        if (roomOptional.isEmpty()) {
+            sendRoomDoesNotExist(sessionId);
+        }
+        return roomOptional;
+    }
+
+    private void sendRoomDoesNotExist(String sessionId) {
+        String errorMessage = JsonNodeUtils.createErrorMessage(
+                sessionId,
+                "room does not exist",
+                this.messageClock);
+        this.messageBroker.sendMessage(sessionId, errorMessage);
+    }
+
+    private void removeRoomIfEmpty(Room room) {
+        synchronized (room) {
+            // A room stays while members on other nodes still use it.
+            if (!room.getMembers().isEmpty() || this.clusterMessageBroker.hasRemoteMembers(room.getId())) {
+                return;
+            }
+            this.roomRepository.removeEntity(room);
+            this.stateSnapshotRepository.recordRoomRemoved(room.getId());
+        }
+        this.clusterMessageBroker.publishRoomRemoved(room.getId());
+        this.chatLogRepository.removeLog(room.getId());
+        this.roomDirectoryFeed.publishChanges();
+        logger.info("Room {} removed because no users have joined it.", room.getId());
     }
 
 }
@@ -0,0 +1,217 @@
+package com.example.chat.service.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.springframework.stereotype.Component;
+
+import com.example.chat.entity.ChatLogPage;
+import com.example.chat.entity.Room;
+import com.example.chat.entity.RoomDirectoryChange;
+import com.example.chat.entity.User;
+import com.example.chat.service.MessageClock;
+import com.example.chat.util.JsonTextBuilder;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+@Component
+public class RoomMessageEncoder {
+
+    // Keys are held weakly and compared by identity, so templates disappear together with
+    // the removed rooms.
+    private final LoadingCache<Room, RoomTemplate> roomTemplates;
+    private final MessageClock messageClock;
+
+    public RoomMessageEncoder(MessageClock messageClock) {
+        this.messageClock = messageClock;
+        this.roomTemplates = CacheBuilder.newBuilder()
+                .weakKeys()
+                .build(CacheLoader.from(RoomTemplate::new));
+    }
+
+    public String encodeChat(Room room, User user, String content) {
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        buffer.append(this.roomTemplates.getUnchecked(room).sendChatPrefix);
+        appendTimestamp(buffer).append(',');
+        JsonTextBuilder.appendField(buffer, "content", content).append(',');
+        buffer.append(user.getIdentityFragment()).append('}');
+        return JsonTextBuilder.release(buffer);
+    }
+
+    public String encodeJoin(Room room, User user) {
+        return encodeMembership(this.roomTemplates.getUnchecked(room).joinPrefix, user);
+    }
+
+    public String encodeLeave(Room room, User user) {
+        return encodeMembership(this.roomTemplates.getUnchecked(room).leavePrefix, user);
+    }
+
+    public String encodeHistory(Room room, ChatLogPage page) {
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        buffer.append(this.roomTemplates.getUnchecked(room).historyPrefix).append("\"messages\":[");
+        List<ByteBuffer> records = page.getRecords();
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                buffer.append(',');
+            }
+            // Records are complete frames, so they are spliced in as they are.
+            buffer.append(StandardCharsets.UTF_8.decode(records.get(i).duplicate()));
+        }
+        buffer.append("],\"nextCursor\":");
+        if (page.hasMore()) {
+            buffer.append(page.getFirstSequence());
+        } else {
+            buffer.append("null");
+        }
+        buffer.append('}');
+        return JsonTextBuilder.release(buffer);
+    }
+
+    public String encodeRecentMessages(Room room) {
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        buffer.append(this.roomTemplates.getUnchecked(room).recentMessagesPrefix).append("\"messages\":[");
+        int start = buffer.length();
+        room.getRecentMessages().forEach(frame -> {
+            if (buffer.length() > start) {
+                buffer.append(',');
+            }
+            buffer.append(StandardCharsets.UTF_8.decode(frame));
+        });
+        buffer.append("]}");
+        return JsonTextBuilder.release(buffer);
+    }
+
+    public String encodeRoomPage(
+            String kind,
+            String sessionId,
+            long version,
+            List<Room> rooms,
+            String nextCursor) {
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        appendDirectoryHeader(buffer, kind, sessionId, version, false);
+        buffer.append(",\"rooms\":[");
+        appendRoomSummaries(buffer, rooms);
+        buffer.append("],");
+        JsonTextBuilder.appendField(buffer, "nextCursor", nextCursor).append('}');
+        return JsonTextBuilder.release(buffer);
+    }
+
+    public String encodeRoomChanges(String sessionId, long version, List<RoomDirectoryChange> changes) {
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        appendDirectoryHeader(buffer, "Room#fetchRooms", sessionId, version, true);
+        appendChanges(buffer, "created", "removed", changes);
+        buffer.append('}');
+        return JsonTextBuilder.release(buffer);
+    }
+
+    public String encodeDirectoryChanges(long version, List<RoomDirectoryChange> changes) {
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        buffer.append("{\"kind\":\"Room#directoryChanged\",\"version\":").append(version);
+        appendChanges(buffer, "roomCreated", "roomRemoved", changes);
+        buffer.append('}');
+        return JsonTextBuilder.release(buffer);
+    }
+
+    // Tells subscribers that changes were missed and the directory has to be fetched again.
+    public String encodeDirectoryResync(long version) {
+        return "{\"kind\":\"Room#directoryChanged\",\"version\":" + version + ",\"resync\":true}";
+    }
+
+    private void appendDirectoryHeader(
+            StringBuilder buffer,
+            String kind,
+            String sessionId,
+            long version,
+            boolean delta) {
+        buffer.append("{\"kind\":\"").append(kind).append("\",");
+        JsonTextBuilder.appendField(buffer, "sessionId", sessionId);
+        buffer.append(",\"version\":").append(version)
+                .append(",\"delta\":").append(delta);
+    }
+
+    private void appendChanges(
+            StringBuilder buffer,
+            String createdField,
+            String removedField,
+            List<RoomDirectoryChange> changes) {
+        buffer.append(",\"").append(createdField).append("\":[");
+        boolean first = true;
+        for (RoomDirectoryChange change : changes) {
+            if (change.getType() != RoomDirectoryChange.Type.CREATED) {
+                continue;
+            }
+            if (!first) {
+                buffer.append(',');
+            }
+            buffer.append(this.roomTemplates.getUnchecked(change.getRoom()).summary);
+            first = false;
+        }
+        buffer.append("],\"").append(removedField).append("\":[");
+        first = true;
+        for (RoomDirectoryChange change : changes) {
+            if (change.getType() != RoomDirectoryChange.Type.REMOVED) {
+                continue;
+            }
+            if (!first) {
+                buffer.append(',');
+            }
+            buffer.append('"').append(change.getRoomId()).append('"');
+            first = false;
+        }
+        buffer.append(']');
+    }
+
+    private void appendRoomSummaries(StringBuilder buffer, List<Room> rooms) {
+        for (int i = 0; i < rooms.size(); i++) {
+            if (i > 0) {
+                buffer.append(',');
+            }
+            buffer.append(this.roomTemplates.getUnchecked(rooms.get(i)).summary);
+        }
+    }
+
+    private String encodeMembership(String prefix, User user) {
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        buffer.append(prefix);
+        appendTimestamp(buffer).append(',');
+        buffer.append(user.getIdentityFragment()).append('}');
+        return JsonTextBuilder.release(buffer);
+    }
+
+    private StringBuilder appendTimestamp(StringBuilder buffer) {
+        // ISO date-times never need escaping.
+        return buffer.append("\"timestamp\":\"")
+                .append(this.messageClock.currentTimestamp())
+                .append('"');
+    }
+
+    private static class RoomTemplate {
+
+        private final String sendChatPrefix;
+        private final String joinPrefix;
+        private final String leavePrefix;
+        private final String historyPrefix;
+        private final String recentMessagesPrefix;
+        private final String summary;
+
+        private RoomTemplate(Room room) {
+            String roomId = room.getId().toString();
+            this.sendChatPrefix = createPrefix("Room#sendChat", roomId);
+            this.joinPrefix = createPrefix("Room#join", roomId);
+            this.leavePrefix = createPrefix("Room#leave", roomId);
+            this.historyPrefix = createPrefix("Room#history", roomId);
+            this.recentMessagesPrefix = createPrefix("Room#recentMessages", roomId);
+            StringBuilder summary = new StringBuilder("{\"roomId\":\"").append(roomId).append("\",");
+            JsonTextBuilder.appendField(summary, "name", room.getName()).append('}');
+            this.summary = summary.toString();
+        }
+
+        private static String createPrefix(String kind, String roomId) {
+            return "{\"kind\":\"" + kind + "\",\"roomId\":\"" + roomId + "\",";
+        }
+
+    }
+
+}
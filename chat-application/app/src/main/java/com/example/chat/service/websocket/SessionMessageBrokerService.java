@@ -1,10 +1,20 @@
 package com.example.chat.service.websocket;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -12,166 +22,673 @@ import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
 
-import com.example.chat.event.websocket.WebSocketJsonMessageReceiveListener;
-import com.example.chat.event.websocket.WebSocketTextMessageReceiveListener;
+import com.example.chat.entity.SessionContext;
+import com.example.chat.entity.WireFormat;
+import com.example.chat.event.websocket.WebSocketSessionRemoveListener;
 import com.example.chat.repository.SessionRepository;
+import com.example.chat.service.DeadLetterSink;
 import com.example.chat.service.MessageBroker;
-import com.example.chat.util.JsonNodeUtils;
 import com.example.chat.websocket.WebSocketEventListenerManager;
-import com.example.chat.websocket.WebSocketHandlerImpl;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 
 import jakarta.annotation.PostConstruct;
 
 @Service
 public class SessionMessageBrokerService
         implements MessageBroker,
-                   WebSocketTextMessageReceiveListener,
+                   WebSocketSessionRemoveListener,
                    DisposableBean {
 
     private static final Logger logger = LogManager.getLogger(SessionMessageBrokerService.class);
 
+    private static final int DRAIN_BATCH_SIZE = 64;
+    private static final long DRAIN_PARKED = -1;
+
     private final SessionRepository sessionRepository;
     private final WebSocketEventListenerManager webSocketEventListenerManager;
-    private final BlockingQueue<TaskWrapper> retryQueue;
-    private final ExecutorService executorService;
+    private final Map<String, SessionOutbox> outboxes;
+    private final ScheduledExecutorService executorService;
     private final ObjectMapper objectMapper;
+    private final CBORMapper cborMapper;
+    private final DeadLetterSink deadLetterSink;
+    private final FrameCompressor frameCompressor;
+    private final MessageBrokerMetrics metrics;
 
     @Value("${message-broker.retry:5}")
     private int retryCount;
 
+    @Value("${message-broker.retry-backoff.initial:50}")
+    private long retryInitialDelay;
+
+    @Value("${message-broker.retry-backoff.max:5000}")
+    private long retryMaxDelay;
+
+    @Value("${message-broker.outbound.max-frames:1000}")
+    private int maxQueuedFrames;
+
+    @Value("${message-broker.outbound.max-frames-policy:DROP_OLDEST}")
+    private OverflowPolicy maxQueuedFramesPolicy;
+
+    @Value("${message-broker.outbound.max-bytes:1048576}")
+    private long maxQueuedBytes;
+
+    @Value("${message-broker.outbound.max-bytes-policy:CLOSE_SERVICE_OVERLOAD}")
+    private OverflowPolicy maxQueuedBytesPolicy;
+
+    @Value("${message-broker.replay-window.max-frames:256}")
+    private int maxReplayFrames;
+
+    @Value("${message-broker.replay-window.max-bytes:262144}")
+    private long maxReplayBytes;
+
     public SessionMessageBrokerService(
             SessionRepository sessionRepository,
             WebSocketEventListenerManager webSocketEventListenerManager,
-            ObjectMapper objectMapper) {
+            ObjectMapper objectMapper,
+            CBORMapper cborMapper,
+            DeadLetterSink deadLetterSink,
+            FrameCompressor frameCompressor,
+            @Value("${message-broker.threads:0}") int threadCount) {
         this.sessionRepository = sessionRepository;
         this.webSocketEventListenerManager = webSocketEventListenerManager;
         this.objectMapper = objectMapper;
-        this.retryQueue = new LinkedBlockingQueue<>();
+        this.cborMapper = cborMapper;
+        this.deadLetterSink = deadLetterSink;
+        this.frameCompressor = frameCompressor;
+        this.metrics = new MessageBrokerMetrics();
+        this.outboxes = new ConcurrentHashMap<>();
         this.executorService = Executors.newScheduledThreadPool(
-                12,
+                threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors(),
                 new CustomizableThreadFactory("Session Message Broker Service"));
         this.webSocketEventListenerManager.addListener(this);
-        this.executorService.submit(this::exhaustTask);
     }
 
     public void setRetryCount(int retryCount) {
         this.retryCount = retryCount;
     }
 
+    public void setRetryBackoff(long initialDelay, long maxDelay) {
+        this.retryInitialDelay = initialDelay;
+        this.retryMaxDelay = maxDelay;
+    }
+
+    public void setMaxQueuedFrames(int maxQueuedFrames, OverflowPolicy policy) {
+        this.maxQueuedFrames = maxQueuedFrames;
+        this.maxQueuedFramesPolicy = policy;
+    }
+
+    public void setMaxQueuedBytes(long maxQueuedBytes, OverflowPolicy policy) {
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxQueuedBytesPolicy = policy;
+    }
+
+    public MessageBrokerMetrics getMetrics() {
+        return this.metrics;
+    }
+
     @Override
     public void sendMessage(String sessionId, String message) {
-        enqueueTask(() -> {
-            if (!this.sessionRepository.containsEntityByKey(sessionId)) {
-                return;
-            }
-            WebSocketSession session = this.sessionRepository
-                    .findEntityByKey(sessionId)
-                    .orElseThrow();
-            session.sendMessage(new TextMessage(message));
-        });
+        enqueueMessage(sessionId, new OutboundFrame(new TextMessage(message)), null);
     }
 
     @Override
     public void sendMessage(String sessionId, Object message) {
-        enqueueTask(() -> {
-            if (!this.sessionRepository.containsEntityByKey(sessionId)) {
-                return;
-            }
-            String payload = this.objectMapper.writeValueAsString(message);
-            WebSocketSession session = this.sessionRepository
-                    .findEntityByKey(sessionId)
-                    .orElseThrow();
-            session.sendMessage(new TextMessage(payload));
-        });
+        TextMessage textMessage = encode(message);
+        if (textMessage == null) {
+            return;
+        }
+        enqueueMessage(sessionId, new OutboundFrame(textMessage), null);
+    }
+
+    @Override
+    public void sendCoalescingMessage(String sessionId, String coalesceKey, String message) {
+        enqueueMessage(sessionId, new OutboundFrame(new TextMessage(message)), coalesceKey);
+    }
+
+    @Override
+    public void broadcast(Collection<String> sessionIds, String message) {
+        broadcastMessage(sessionIds, new OutboundFrame(new TextMessage(message)));
+    }
+
+    @Override
+    public void broadcast(Collection<String> sessionIds, Object message) {
+        TextMessage textMessage = encode(message);
+        if (textMessage == null) {
+            return;
+        }
+        broadcastMessage(sessionIds, new OutboundFrame(textMessage));
+    }
+
+    // Every frame delivered to a session takes the next sequence number, starting at one
+    // with the first frame after connecting. Frames sent after lastSequence are queued
+    // again ahead of the pending ones, preceded by the given message which takes none.
+    // Fails when frames are missing that a replay cannot restore, so the client resyncs.
+    @Override
+    public boolean replay(String sessionId, long lastSequence, String message) {
+        if (!this.sessionRepository.containsEntityByKey(sessionId)) {
+            return false;
+        }
+        return this.outboxes
+                .computeIfAbsent(sessionId, SessionOutbox::new)
+                .replay(lastSequence, new OutboundTask(new OutboundFrame(new TextMessage(message)), null, false));
+    }
+
+    @Override
+    public void resume(String sessionId) {
+        SessionOutbox outbox = this.outboxes.get(sessionId);
+        if (outbox != null) {
+            outbox.schedule();
+        }
     }
 
     @Override
     public void destroy() throws Exception {
         this.webSocketEventListenerManager.removeListener(this);
         this.executorService.shutdown();
+        this.outboxes.clear();
     }
 
     @Override
-    public void onTextMessageReceive(WebSocketSession session, TextMessage message) throws Exception {
-        String sessionId = session.getId();
-        if (!this.sessionRepository.containsEntityByKey(sessionId)) {
-            return;
+    public void onSessionRemove(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        SessionOutbox outbox = this.outboxes.remove(session.getId());
+        if (outbox != null) {
+            outbox.clear();
         }
-        String payload = message.getPayload();
+    }
+
+    @PostConstruct
+    private void postConstruct() {
+        logger.info("Session Message Broker Service started with retry count: {}, backoff: {}-{} ms",
+                this.retryCount,
+                this.retryInitialDelay,
+                this.retryMaxDelay);
+        logger.info("Outbound limits per session: {} frames ({}), {} bytes ({})",
+                this.maxQueuedFrames,
+                this.maxQueuedFramesPolicy,
+                this.maxQueuedBytes,
+                this.maxQueuedBytesPolicy);
+        logger.info("Compressing outbound frames of at least {} bytes for deflate sub-protocols",
+                this.frameCompressor.getThreshold());
+    }
+
+    private TextMessage encode(Object message) {
         try {
-            JsonNode jsonData = this.objectMapper.readTree(payload);
-            WebSocketHandlerImpl webSocketHandler = (WebSocketHandlerImpl) this.webSocketEventListenerManager;
-            for (WebSocketJsonMessageReceiveListener listener :
-                    webSocketHandler.getListeners(WebSocketJsonMessageReceiveListener.class)) {
-                listener.onJsonMessageReceive(session, jsonData);
-            }
+            return new TextMessage(this.objectMapper.writeValueAsString(message));
         } catch (JsonProcessingException e) {
-            JsonNode errorMessageData = JsonNodeUtils.crateErrorMessageData(sessionId, "invalid payload");
-            sendMessage(sessionId, errorMessageData.toString());
+            logger.error("Failed to serialize message: {}", message, e);
+            return null;
         }
     }
 
-    @PostConstruct
-    private void postConstruct() {
-        logger.info("Session Message Broker Service started with retry count: {}", this.retryCount);
+    private byte[] transcodeToCbor(String json) throws IOException {
+        // Streams tokens from the JSON parser into the CBOR generator without a tree.
+        ByteArrayOutputStream output = new ByteArrayOutputStream(json.length());
+        try (JsonParser parser = this.objectMapper.getFactory().createParser(json);
+             JsonGenerator generator = this.cborMapper.getFactory().createGenerator(output)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+        return output.toByteArray();
     }
 
-    private void enqueueTask(Task task) {
-        this.retryQueue.add(new TaskWrapper(task));
+    private void broadcastMessage(Collection<String> sessionIds, OutboundFrame frame) {
+        // The frame is immutable, so every recipient shares the same encoded payload.
+        for (String sessionId : sessionIds) {
+            enqueueMessage(sessionId, frame, null);
+        }
     }
 
-    private void exhaustTask() {
-        try {
-            TaskWrapper task;
-            while (true) {
-                task = this.retryQueue.take();
-                logger.info("Task taken from queue: {}", task);
-                try {
-                    task.run();
-                } catch (Exception e) {
-                    if (task.getCounter() < this.retryCount) {
-                        logger.warn("Failed to exhaust task {}. Retry the task", task);
-                        this.retryQueue.add(task);
-                    } else {
-                        logger.error(e);
+    private void enqueueMessage(String sessionId, OutboundFrame frame, String coalesceKey) {
+        if (!this.sessionRepository.containsEntityByKey(sessionId)) {
+            return;
+        }
+        this.outboxes
+                .computeIfAbsent(sessionId, SessionOutbox::new)
+                .enqueue(new OutboundTask(frame, coalesceKey, true));
+    }
+
+    private long computeRetryDelay(int attempts) {
+        long delay = this.retryInitialDelay << Math.min(attempts - 1, 20);
+        delay = Math.min(delay, this.retryMaxDelay);
+        // Equal jitter keeps at least half of the backoff while spreading retries of
+        // sessions that failed together.
+        long half = delay / 2;
+        return Math.max(1, half + ThreadLocalRandom.current().nextLong(delay - half + 1));
+    }
+
+    // One encoded message shared by all of its recipients. Every other encoding is derived
+    // on first use, so a broadcast is transcoded and compressed at most once however many
+    // sessions receive it in that format.
+    private class OutboundFrame {
+
+        private final TextMessage textMessage;
+        // Taken once, since the text message encodes its payload again on every call.
+        private final int size;
+        private volatile byte[] cborPayload;
+        private volatile byte[] compressedJsonPayload;
+        private volatile byte[] compressedCborPayload;
+
+        private OutboundFrame(TextMessage textMessage) {
+            this.textMessage = textMessage;
+            this.size = textMessage.getPayloadLength();
+        }
+
+        public int getSize() {
+            return this.size;
+        }
+
+        public TextMessage getTextMessage() {
+            return this.textMessage;
+        }
+
+        public WebSocketMessage<?> toMessage(WireFormat wireFormat) throws IOException {
+            byte[] payload;
+            switch (wireFormat) {
+                case CBOR:
+                    payload = getCborPayload();
+                    break;
+                case CBOR_DEFLATE:
+                    payload = getCompressedCborPayload();
+                    break;
+                case JSON_DEFLATE:
+                    if (this.size < frameCompressor.getThreshold()) {
+                        return this.textMessage;
+                    }
+                    payload = getCompressedJsonPayload();
+                    if (payload.length == 0) {
+                        return this.textMessage;
                     }
+                    break;
+                case JSON:
+                default:
+                    return this.textMessage;
+            }
+            // Containers consume the buffer while sending, so every send gets its own wrapper.
+            return new BinaryMessage(payload);
+        }
+
+        private byte[] getCborPayload() throws IOException {
+            byte[] payload = this.cborPayload;
+            if (payload == null) {
+                payload = transcodeToCbor(this.textMessage.getPayload());
+                this.cborPayload = payload;
+            }
+            return payload;
+        }
+
+        private byte[] getCompressedCborPayload() throws IOException {
+            byte[] payload = this.compressedCborPayload;
+            if (payload == null) {
+                payload = frameCompressor.encode(getCborPayload());
+                this.compressedCborPayload = payload;
+            }
+            return payload;
+        }
+
+        // Empty when deflating does not pay off and the text frame is sent as is.
+        private byte[] getCompressedJsonPayload() {
+            byte[] payload = this.compressedJsonPayload;
+            if (payload == null) {
+                payload = frameCompressor.deflate(this.textMessage.getPayload().getBytes(StandardCharsets.UTF_8));
+                if (payload == null) {
+                    payload = new byte[0];
                 }
+                this.compressedJsonPayload = payload;
             }
-        } catch (InterruptedException e) {
-            this.retryQueue.clear();
+            return payload;
         }
+
     }
 
-    @FunctionalInterface
-    private static interface Task {
+    private static class OutboundTask {
 
-        public void run() throws Exception;
+        private final OutboundFrame frame;
+        private final int size;
+        private final String coalesceKey;
+        private final boolean sequenced;
+
+        // Only touched by the worker draining the owning outbox.
+        private int attempts;
+        private long retryScheduledTime;
+
+        private OutboundTask(OutboundFrame frame, String coalesceKey, boolean sequenced) {
+            this.frame = frame;
+            this.size = frame.getSize();
+            this.coalesceKey = coalesceKey;
+            this.sequenced = sequenced;
+        }
 
     }
 
-    private static class TaskWrapper implements Task {
+    // At most one worker drains an outbox at a time, so each session receives its
+    // messages in order while different sessions are served by the whole pool.
+    private class SessionOutbox implements Runnable {
 
-        private final Task task;
-        private final AtomicInteger counter;
+        private final String sessionId;
+        private final Deque<OutboundTask> tasks;
+        private final AtomicBoolean scheduled;
 
-        private TaskWrapper(Task task) {
-            this.task = task;
-            counter = new AtomicInteger();
+        // Frames already delivered, the newest one carrying sentSequence.
+        private final Deque<OutboundFrame> sentFrames;
+
+        // Held by the worker for a whole drain, so a replay never races with a send.
+        private final Object sendLock;
+
+        // Guarded by this outbox.
+        private long queuedBytes;
+        private boolean throttled;
+        private CloseStatus closeStatus;
+        private long sentSequence;
+        private long sentBytes;
+        // Set when a frame was dropped while the client was away, which a replay cannot
+        // make up for.
+        private boolean droppedWhileDetached;
+
+        private SessionOutbox(String sessionId) {
+            this.sessionId = sessionId;
+            this.tasks = new ArrayDeque<>();
+            this.scheduled = new AtomicBoolean();
+            this.sentFrames = new ArrayDeque<>();
+            this.sendLock = new Object();
+        }
+
+        public void enqueue(OutboundTask task) {
+            CloseStatus status;
+            synchronized (this) {
+                if (this.closeStatus != null) {
+                    return;
+                }
+                if (admit(task)) {
+                    this.tasks.offerLast(task);
+                    this.queuedBytes += task.size;
+                }
+                status = this.closeStatus;
+            }
+            if (status != null) {
+                close(status);
+                return;
+            }
+            schedule();
+        }
+
+        public synchronized void clear() {
+            this.tasks.clear();
+            this.queuedBytes = 0;
+            setThrottled(false);
+        }
+
+        public boolean replay(long lastSequence, OutboundTask reply) {
+            synchronized (this.sendLock) {
+                synchronized (this) {
+                    long firstSequence = this.sentSequence - this.sentFrames.size() + 1;
+                    if (this.closeStatus != null
+                            || this.droppedWhileDetached
+                            || lastSequence > this.sentSequence
+                            || lastSequence < firstSequence - 1) {
+                        return false;
+                    }
+                    while (this.sentSequence > lastSequence) {
+                        OutboundFrame frame = this.sentFrames.pollLast();
+                        this.sentBytes -= frame.getSize();
+                        this.sentSequence--;
+                        OutboundTask task = new OutboundTask(frame, null, true);
+                        this.tasks.offerFirst(task);
+                        this.queuedBytes += task.size;
+                    }
+                    this.tasks.offerFirst(reply);
+                    this.queuedBytes += reply.size;
+                    return true;
+                }
+            }
         }
 
         @Override
-        public void run() throws Exception {
-            this.task.run();
+        public void run() {
+            long retryDelay = 0;
+            try {
+                synchronized (this.sendLock) {
+                    retryDelay = drain();
+                }
+            } finally {
+                if (retryDelay == DRAIN_PARKED) {
+                    // The connection is gone, so the frames wait for the session to be
+                    // resumed or removed.
+                    this.scheduled.set(false);
+                } else if (retryDelay > 0) {
+                    // The outbox stays marked as scheduled while parked, so fresh messages
+                    // for this session queue up behind the retry without waking a worker.
+                    scheduleRetry(retryDelay);
+                } else {
+                    this.scheduled.set(false);
+                    if (!isEmpty()) {
+                        schedule();
+                    } else if (!sessionRepository.containsEntityByKey(this.sessionId)) {
+                        outboxes.remove(this.sessionId, this);
+                    }
+                }
+            }
+        }
+
+        private boolean admit(OutboundTask task) {
+            while (true) {
+                OverflowPolicy policy;
+                if (this.tasks.size() >= maxQueuedFrames) {
+                    policy = maxQueuedFramesPolicy;
+                } else if (this.queuedBytes + task.size > maxQueuedBytes) {
+                    policy = maxQueuedBytesPolicy;
+                } else {
+                    return true;
+                }
+                setThrottled(true);
+                switch (policy) {
+                    case DROP_NEW:
+                        recordOverflowDrop(task);
+                        return false;
+                    case CLOSE_POLICY_VIOLATION:
+                    case CLOSE_SERVICE_OVERLOAD:
+                        this.closeStatus = policy.getCloseStatus();
+                        return false;
+                    case COALESCE:
+                        if (evictCoalesced(task.coalesceKey)) {
+                            metrics.recordCoalesced();
+                            continue;
+                        }
+                        // Nothing to coalesce with, so fall back to dropping the oldest frame.
+                    case DROP_OLDEST:
+                    default:
+                        OutboundTask oldest = this.tasks.pollFirst();
+                        if (oldest == null) {
+                            recordOverflowDrop(task);
+                            return false;
+                        }
+                        recordOverflowDrop(oldest);
+                        this.queuedBytes -= oldest.size;
+                }
+            }
+        }
+
+        private void recordOverflowDrop(OutboundTask task) {
+            metrics.recordOverflowDrop();
+            if (!task.sequenced || this.droppedWhileDetached) {
+                return;
+            }
+            // A coalesced frame is superseded by a newer one, but a dropped one is simply
+            // missing, and the client would not notice the gap after resuming.
+            this.droppedWhileDetached = sessionRepository
+                    .findContextByKey(this.sessionId)
+                    .map(SessionContext::isDetached)
+                    .orElse(false);
+        }
+
+        private boolean evictCoalesced(String coalesceKey) {
+            if (coalesceKey == null) {
+                return false;
+            }
+            Iterator<OutboundTask> iterator = this.tasks.iterator();
+            while (iterator.hasNext()) {
+                OutboundTask queued = iterator.next();
+                if (coalesceKey.equals(queued.coalesceKey)) {
+                    iterator.remove();
+                    this.queuedBytes -= queued.size;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized OutboundTask poll() {
+            OutboundTask task = this.tasks.pollFirst();
+            if (task == null) {
+                return null;
+            }
+            this.queuedBytes -= task.size;
+            if (this.throttled
+                    && this.tasks.size() <= maxQueuedFrames / 2
+                    && this.queuedBytes <= maxQueuedBytes / 2) {
+                setThrottled(false);
+            }
+            return task;
         }
 
-        public int getCounter() {
-            return counter.incrementAndGet();
+        private synchronized void pushBack(OutboundTask task) {
+            this.tasks.offerFirst(task);
+            this.queuedBytes += task.size;
+        }
+
+        private synchronized boolean isEmpty() {
+            return this.tasks.isEmpty();
+        }
+
+        private synchronized void recordSent(OutboundFrame frame) {
+            this.sentFrames.offerLast(frame);
+            this.sentBytes += frame.getSize();
+            this.sentSequence++;
+            while (this.sentFrames.size() > maxReplayFrames
+                    || (this.sentBytes > maxReplayBytes && this.sentFrames.size() > 1)) {
+                this.sentBytes -= this.sentFrames.pollFirst().getSize();
+            }
+        }
+
+        private void setThrottled(boolean throttled) {
+            if (this.throttled == throttled) {
+                return;
+            }
+            this.throttled = throttled;
+            metrics.recordThrottled(throttled);
+        }
+
+        private void close(CloseStatus status) {
+            clear();
+            metrics.recordOverflowClose();
+            logger.warn("Closing session {} because its outbound queue overflowed: {}", this.sessionId, status);
+            sessionRepository
+                    .findEntityByKey(this.sessionId)
+                    .ifPresent(session -> {
+                        try {
+                            session.close(status);
+                        } catch (IOException e) {
+                            logger.warn("Failed to close session {}", this.sessionId, e);
+                        }
+                    });
+        }
+
+        private long drain() {
+            SessionContext context = sessionRepository
+                    .findContextByKey(this.sessionId)
+                    .orElse(null);
+            if (context == null) {
+                clear();
+                return 0;
+            }
+            if (context.isDetached()) {
+                return DRAIN_PARKED;
+            }
+            WebSocketSession session = context.getSession();
+            WireFormat wireFormat = context.getWireFormat();
+            for (int i = 0; i < DRAIN_BATCH_SIZE; i++) {
+                OutboundTask task = poll();
+                if (task == null) {
+                    return 0;
+                }
+                if (context.isDetached()) {
+                    pushBack(task);
+                    return DRAIN_PARKED;
+                }
+                if (task.retryScheduledTime != 0) {
+                    metrics.recordRetryWait(System.nanoTime() - task.retryScheduledTime);
+                    task.retryScheduledTime = 0;
+                }
+                WebSocketMessage<?> message;
+                try {
+                    message = task.frame.toMessage(wireFormat);
+                } catch (IOException e) {
+                    metrics.recordDrop();
+                    deadLetterSink.accept(this.sessionId, task.frame.getTextMessage(), e);
+                    continue;
+                }
+                try {
+                    session.sendMessage(message);
+                    if (task.sequenced) {
+                        recordSent(task.frame);
+                    }
+                } catch (SessionLimitExceededException e) {
+                    // The decorator has already closed the session, so nothing else can be delivered.
+                    clear();
+                    metrics.recordDrop();
+                    deadLetterSink.accept(this.sessionId, message, e);
+                    return 0;
+                } catch (Exception e) {
+                    if (!session.isOpen()) {
+                        // Kept until the close is handled, since the session may be detached
+                        // and resumed rather than removed.
+                        pushBack(task);
+                        return DRAIN_PARKED;
+                    }
+                    task.attempts++;
+                    if (task.attempts < retryCount) {
+                        long delay = computeRetryDelay(task.attempts);
+                        logger.debug("Failed to send message to session {}. Retry in {} ms", this.sessionId, delay);
+                        metrics.recordRetry();
+                        task.retryScheduledTime = System.nanoTime();
+                        pushBack(task);
+                        return delay;
+                    }
+                    metrics.recordDrop();
+                    deadLetterSink.accept(this.sessionId, message, e);
+                }
+            }
+            return 0;
+        }
+
+        public void schedule() {
+            if (this.scheduled.compareAndSet(false, true)) {
+                try {
+                    executorService.execute(this);
+                } catch (RejectedExecutionException e) {
+                    this.scheduled.set(false);
+                    clear();
+                }
+            }
+        }
+
+        private void scheduleRetry(long delay) {
+            try {
+                executorService.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                this.scheduled.set(false);
+                clear();
+            }
         }
 
     }
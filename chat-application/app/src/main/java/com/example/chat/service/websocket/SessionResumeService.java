@@ -0,0 +1,278 @@
+package com.example.chat.service.websocket;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import com.example.chat.entity.SessionContext;
+import com.example.chat.entity.websocket.WebSocketResumeSessionRequest;
+import com.example.chat.event.websocket.WebSocketSessionDetachListener;
+import com.example.chat.event.websocket.WebSocketSessionRemoveListener;
+import com.example.chat.repository.StateSnapshotRepository;
+import com.example.chat.service.MessageBroker;
+import com.example.chat.service.MessageClock;
+import com.example.chat.util.JsonNodeUtils;
+import com.example.chat.util.JsonTextBuilder;
+import com.example.chat.websocket.WebSocketCommandRouter;
+import com.example.chat.websocket.WebSocketEventListenerManager;
+
+@Service
+public class SessionResumeService
+        implements WebSocketSessionDetachListener,
+                   WebSocketSessionRemoveListener,
+                   DisposableBean {
+
+    private static final Logger logger = LogManager.getLogger(SessionResumeService.class);
+
+    private static final int RESUME_TOKEN_BYTES = 32;
+
+    private final WebSocketEventListenerManager webSocketEventListenerManager;
+    private final WebSocketCommandRouter webSocketCommandRouter;
+    private final MessageBroker messageBroker;
+    private final MessageClock messageClock;
+    private final StateSnapshotRepository stateSnapshotRepository;
+    // Keyed by token hash. Clients hold the tokens, this node only ever keeps their hashes.
+    private final Map<String, SessionContext> resumableContexts;
+    // Sessions restored from a snapshot, whose frames went away with the previous process.
+    private final Set<SessionContext> restoredContexts;
+    private final SecureRandom random;
+    private final ScheduledExecutorService executorService;
+
+    @Value("${websocket.resume.grace-period:30000}")
+    private long gracePeriod;
+
+    public SessionResumeService(
+            WebSocketEventListenerManager webSocketEventListenerManager,
+            WebSocketCommandRouter webSocketCommandRouter,
+            MessageBroker messageBroker,
+            MessageClock messageClock,
+            StateSnapshotRepository stateSnapshotRepository) {
+        this.webSocketEventListenerManager = webSocketEventListenerManager;
+        this.webSocketCommandRouter = webSocketCommandRouter;
+        this.messageBroker = messageBroker;
+        this.messageClock = messageClock;
+        this.stateSnapshotRepository = stateSnapshotRepository;
+        this.resumableContexts = new ConcurrentHashMap<>();
+        this.restoredContexts = ConcurrentHashMap.newKeySet();
+        this.random = new SecureRandom();
+        this.executorService = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("Session Resume Service"));
+        this.webSocketEventListenerManager.addListener(this);
+        this.webSocketCommandRouter.registerHandler(WebSocketResumeSessionRequest.class, this::resumeSession);
+    }
+
+    public String issueResumeToken(SessionContext context) {
+        String resumeToken = createResumeToken();
+        String previous = context.getResumeTokenHash();
+        if (previous != null) {
+            this.resumableContexts.remove(previous, context);
+        }
+        String resumeTokenHash = hashResumeToken(resumeToken);
+        context.setResumeTokenHash(resumeTokenHash);
+        this.resumableContexts.put(resumeTokenHash, context);
+        return resumeToken;
+    }
+
+    // Waits for the client of a session restored at startup as if its connection had just
+    // dropped.
+    public boolean restoreSession(SessionContext context, String resumeTokenHash) {
+        context.setResumeTokenHash(resumeTokenHash);
+        this.resumableContexts.put(resumeTokenHash, context);
+        this.restoredContexts.add(context);
+        if (onSessionDetach(context.getSession(), CloseStatus.GOING_AWAY)) {
+            return true;
+        }
+        this.resumableContexts.remove(resumeTokenHash, context);
+        this.restoredContexts.remove(context);
+        return false;
+    }
+
+    @Override
+    public boolean onSessionDetach(WebSocketSession session, CloseStatus closeStatus) {
+        SessionContext context = SessionContext.fromSession(session);
+        if (context == null || !context.isAuthenticated() || !isResumable(closeStatus)) {
+            return false;
+        }
+        String resumeTokenHash = context.getResumeTokenHash();
+        if (resumeTokenHash == null || this.resumableContexts.get(resumeTokenHash) != context) {
+            return false;
+        }
+        try {
+            this.executorService.schedule(
+                    () -> expire(resumeTokenHash, context),
+                    this.gracePeriod,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        context.detach();
+        return true;
+    }
+
+    @Override
+    public void onSessionRemove(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        SessionContext context = SessionContext.fromSession(session);
+        if (context == null || context.getResumeTokenHash() == null) {
+            return;
+        }
+        this.resumableContexts.remove(context.getResumeTokenHash(), context);
+        this.restoredContexts.remove(context);
+    }
+
+    public void resumeSession(SessionContext context, WebSocketResumeSessionRequest request) throws Exception {
+        String sessionId = context.getSessionId();
+        if (context.isAuthenticated()) {
+            sendErrorMessage(sessionId, "session already authenticated");
+            return;
+        }
+        // Removing the token claims the session, so only one connection can resume it.
+        String resumeToken = request.getResumeToken();
+        SessionContext resumed = resumeToken != null
+                ? this.resumableContexts.remove(hashResumeToken(resumeToken))
+                : null;
+        if (resumed == null) {
+            sendErrorMessage(sessionId, "invalid resume token");
+            return;
+        }
+        String resumedSessionId = resumed.getSessionId();
+        WebSocketSession previous = resumed.getSession();
+        boolean wasDetached = resumed.isDetached();
+        // Stops delivery on a connection that has not noticed the drop yet.
+        resumed.detach();
+        // Counting starts over for a restored session, since nothing it missed was kept.
+        boolean restored = this.restoredContexts.remove(resumed);
+        long lastSequence = !restored && request.getLastSequence() != null ? request.getLastSequence() : 0;
+        String nextResumeToken = createResumeToken();
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        buffer.append("{\"kind\":\"Auth#resume\",");
+        JsonTextBuilder.appendField(buffer, "sessionId", resumedSessionId).append(',');
+        JsonTextBuilder.appendField(buffer, "resumeToken", nextResumeToken).append(',');
+        buffer.append("\"lastSequence\":").append(lastSequence).append('}');
+        if (!this.messageBroker.replay(resumedSessionId, lastSequence, JsonTextBuilder.release(buffer))) {
+            logger.info("Session {} missed frames that are no longer kept, ending it", resumedSessionId);
+            if (wasDetached) {
+                this.webSocketEventListenerManager.dispatchSessionRemove(previous, CloseStatus.NORMAL);
+            } else {
+                closeSession(previous, CloseStatus.SESSION_NOT_RELIABLE);
+            }
+            sendErrorMessage(sessionId, "session can no longer be resumed");
+            return;
+        }
+        // The new connection's own session is dropped and the connection is bound to the
+        // resumed context instead, under the ID its user and rooms are keyed by.
+        WebSocketSession session = context.getSession();
+        this.webSocketEventListenerManager.dispatchSessionRemove(session, CloseStatus.NORMAL);
+        String nextResumeTokenHash = hashResumeToken(nextResumeToken);
+        resumed.setResumeTokenHash(nextResumeTokenHash);
+        this.resumableContexts.put(nextResumeTokenHash, resumed);
+        this.stateSnapshotRepository.recordResumeTokenHash(resumedSessionId, nextResumeTokenHash);
+        resumed.attach(new ResumedWebSocketSession(session, resumedSessionId));
+        this.messageBroker.resume(resumedSessionId);
+        if (!wasDetached) {
+            closeSession(previous, CloseStatus.NORMAL.withReason("session resumed on another connection"));
+        }
+        logger.info("Session {} resumed on connection {} after sequence {}", resumedSessionId, sessionId, lastSequence);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.webSocketEventListenerManager.removeListener(this);
+        this.webSocketCommandRouter.unregisterHandler(WebSocketResumeSessionRequest.class);
+        this.executorService.shutdownNow();
+        this.resumableContexts.clear();
+        this.restoredContexts.clear();
+    }
+
+    private void expire(String resumeTokenHash, SessionContext context) {
+        // A resumption replaces the token, so only a session still waiting is removed here.
+        if (!this.resumableContexts.remove(resumeTokenHash, context)) {
+            return;
+        }
+        this.restoredContexts.remove(context);
+        logger.info("Session {} was not resumed within {} ms", context.getSessionId(), this.gracePeriod);
+        try {
+            this.webSocketEventListenerManager.dispatchSessionRemove(context.getSession(), CloseStatus.GOING_AWAY);
+        } catch (Exception e) {
+            logger.warn("Failed to remove expired session {}", context.getSessionId(), e);
+        }
+    }
+
+    private boolean isResumable(CloseStatus closeStatus) {
+        // Deliberate closes and the ones the server forced are not worth keeping.
+        return !closeStatus.equalsCode(CloseStatus.NORMAL)
+                && !closeStatus.equalsCode(CloseStatus.POLICY_VIOLATION)
+                && !closeStatus.equalsCode(CloseStatus.SERVICE_OVERLOAD)
+                && !closeStatus.equalsCode(CloseStatus.SESSION_NOT_RELIABLE);
+    }
+
+    private String createResumeToken() {
+        byte[] bytes = new byte[RESUME_TOKEN_BYTES];
+        this.random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    // Tokens are random, so an unsalted digest is as hard to turn back into one as guessing.
+    private static String hashResumeToken(String resumeToken) {
+        try {
+            byte[] digest = MessageDigest
+                    .getInstance("SHA-256")
+                    .digest(resumeToken.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void closeSession(WebSocketSession session, CloseStatus closeStatus) {
+        try {
+            session.close(closeStatus);
+        } catch (IOException e) {
+            logger.warn("Failed to close session {}", session.getId(), e);
+        }
+    }
+
+    private void sendErrorMessage(String sessionId, String message) {
+        String errorMessage = JsonNodeUtils.createErrorMessage(sessionId, message, this.messageClock);
+        this.messageBroker.sendMessage(sessionId, errorMessage);
+    }
+
+    // Keeps reporting the resumed session's ID, so everything keyed by it still applies to
+    // the new connection.
+    private static class ResumedWebSocketSession extends WebSocketSessionDecorator {
+
+        private final String sessionId;
+
+        private ResumedWebSocketSession(WebSocketSession delegate, String sessionId) {
+            super(delegate);
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public String getId() {
+            return this.sessionId;
+        }
+
+    }
+
+}
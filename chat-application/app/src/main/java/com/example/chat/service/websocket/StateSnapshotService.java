@@ -0,0 +1,264 @@
+package com.example.chat.service.websocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.chat.entity.Room;
+import com.example.chat.entity.SessionContext;
+import com.example.chat.entity.StateSnapshot;
+import com.example.chat.entity.User;
+import com.example.chat.entity.UserAuth;
+import com.example.chat.entity.UserAuthState;
+import com.example.chat.repository.RecentMessageArena;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.repository.SessionRepository;
+import com.example.chat.repository.StateSnapshotRepository;
+import com.example.chat.repository.UserAuthRepository;
+import com.example.chat.repository.UserRepository;
+
+import jakarta.annotation.PostConstruct;
+
+@Service
+public class StateSnapshotService implements DisposableBean {
+
+    private static final Logger logger = LogManager.getLogger(StateSnapshotService.class);
+
+    private final StateSnapshotRepository stateSnapshotRepository;
+    private final RoomRepository roomRepository;
+    private final SessionRepository sessionRepository;
+    private final UserAuthRepository userAuthRepository;
+    private final UserRepository userRepository;
+    private final RecentMessageArena recentMessageArena;
+    private final SessionResumeService sessionResumeService;
+    private final ScheduledExecutorService executorService;
+
+    @Value("${state.snapshot-interval:300000}")
+    private long snapshotInterval;
+
+    @Value("${state.journal.flush-interval:1000}")
+    private long flushInterval;
+
+    public StateSnapshotService(
+            StateSnapshotRepository stateSnapshotRepository,
+            RoomRepository roomRepository,
+            SessionRepository sessionRepository,
+            UserAuthRepository userAuthRepository,
+            UserRepository userRepository,
+            RecentMessageArena recentMessageArena,
+            SessionResumeService sessionResumeService) {
+        this.stateSnapshotRepository = stateSnapshotRepository;
+        this.roomRepository = roomRepository;
+        this.sessionRepository = sessionRepository;
+        this.userAuthRepository = userAuthRepository;
+        this.userRepository = userRepository;
+        this.recentMessageArena = recentMessageArena;
+        this.sessionResumeService = sessionResumeService;
+        this.executorService = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("State Snapshot"));
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.executorService.shutdown();
+        this.executorService.awaitTermination(this.snapshotInterval, TimeUnit.MILLISECONDS);
+        // Connections closed by the shutdown are detached rather than removed, so the next
+        // start restores their users for resumption.
+        writeSnapshot();
+    }
+
+    @PostConstruct
+    private void postConstruct() {
+        restore(this.stateSnapshotRepository.load());
+        this.executorService.scheduleWithFixedDelay(
+                this::writeSnapshot,
+                this.snapshotInterval,
+                this.snapshotInterval,
+                TimeUnit.MILLISECONDS);
+        this.executorService.scheduleWithFixedDelay(
+                this.stateSnapshotRepository::flush,
+                this.flushInterval,
+                this.flushInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void restore(StateSnapshot snapshot) {
+        // Users come back as detached sessions, so their clients can resume them and keep
+        // their rooms until the grace period runs out.
+        Map<String, SessionContext> contexts = new HashMap<>();
+        for (StateSnapshot.UserState userState : snapshot.getUsers()) {
+            String sessionId = userState.getSessionId();
+            this.sessionRepository.addEntity(new RestoredWebSocketSession(sessionId));
+            SessionContext context = this.sessionRepository.findContextByKey(sessionId).orElse(null);
+            if (context == null) {
+                continue;
+            }
+            this.userAuthRepository.addEntity(new UserAuth(sessionId, UserAuthState.SUCCESS));
+            this.userRepository.addEntity(new User(sessionId, userState.getName(), userState.getJoinedTime()));
+            contexts.put(sessionId, context);
+        }
+        int roomCount = 0;
+        // Rooms come back even without members, as a room nobody has joined yet is kept
+        // until its last member leaves, and members that do not resume leave on expiry.
+        for (StateSnapshot.RoomState roomState : snapshot.getRooms()) {
+            Room room = new Room(
+                    roomState.getId(),
+                    roomState.getName(),
+                    this.recentMessageArena.allocate(roomState.getRecentMessageCount()));
+            this.roomRepository.addEntity(room);
+            if (this.roomRepository.findEntityByKey(room.getId()).orElse(null) != room) {
+                this.recentMessageArena.release(room.getRecentMessages());
+                continue;
+            }
+            roomCount++;
+            for (String sessionId : roomState.getMemberSessionIds()) {
+                SessionContext context = contexts.get(sessionId);
+                if (context != null && room.getMembers().add(context.getUser())) {
+                    context.addJoinedRoom(room.getId());
+                }
+            }
+        }
+        for (SessionContext context : contexts.values()) {
+            String resumeTokenHash = snapshot.getUser(context.getSessionId()).getResumeTokenHash();
+            if (!this.sessionResumeService.restoreSession(context, resumeTokenHash)) {
+                logger.warn("Restored session {} cannot be resumed", context.getSessionId());
+            }
+        }
+        logger.info("Restored {} rooms and {} users", roomCount, contexts.size());
+    }
+
+    private void writeSnapshot() {
+        try {
+            if (!this.stateSnapshotRepository.hasChangesSinceSnapshot()) {
+                return;
+            }
+            // The journal is rotated first, so no change falls between it and the snapshot.
+            long generation = this.stateSnapshotRepository.rotateJournal();
+            List<SessionContext> contexts = this.sessionRepository.getAllContexts();
+            List<Room> rooms = this.roomRepository.getAllEntities();
+            this.stateSnapshotRepository.writeSnapshot(generation, contexts, rooms);
+        } catch (RuntimeException e) {
+            logger.error("Failed to take state snapshot", e);
+        }
+    }
+
+    // Stands in for the connection of a restored user until the client resumes it.
+    private static class RestoredWebSocketSession implements WebSocketSession {
+
+        private final String id;
+        private final Map<String, Object> attributes;
+
+        private RestoredWebSocketSession(String id) {
+            this.id = id;
+            this.attributes = new ConcurrentHashMap<>();
+        }
+
+        @Override
+        public String getId() {
+            return this.id;
+        }
+
+        @Override
+        public URI getUri() {
+            return null;
+        }
+
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return new HttpHeaders();
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return this.attributes;
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return null;
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return 0;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return 0;
+        }
+
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return List.of();
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            throw new IOException("Restored session " + this.id + " has not been resumed");
+        }
+
+        @Override
+        public boolean isOpen() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public void close(CloseStatus status) throws IOException {
+        }
+
+        @Override
+        public String toString() {
+            return String.format("RestoredWebSocketSession[id='%s']", this.id);
+        }
+
+    }
+
+}
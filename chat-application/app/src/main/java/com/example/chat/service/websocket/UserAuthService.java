@@ -1,35 +1,37 @@
 package com.example.chat.service.websocket;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator.OverflowStrategy;
 
+import com.example.chat.entity.SessionContext;
 import com.example.chat.entity.User;
 import com.example.chat.entity.UserAuth;
 import com.example.chat.entity.UserAuthState;
-import com.example.chat.event.websocket.WebSocketJsonMessageReceiveListener;
+import com.example.chat.entity.websocket.WebSocketCreateUserRequest;
 import com.example.chat.event.websocket.WebSocketSessionAddListener;
 import com.example.chat.event.websocket.WebSocketSessionRemoveListener;
 import com.example.chat.repository.SessionRepository;
+import com.example.chat.repository.StateSnapshotRepository;
 import com.example.chat.repository.UserAuthRepository;
 import com.example.chat.repository.UserRepository;
 import com.example.chat.service.MessageBroker;
+import com.example.chat.service.MessageClock;
 import com.example.chat.util.JsonNodeUtils;
+import com.example.chat.util.JsonTextBuilder;
+import com.example.chat.websocket.WebSocketCommandRouter;
 import com.example.chat.websocket.WebSocketEventListenerManager;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 
 @Service
 public class UserAuthService
         implements WebSocketSessionAddListener,
                    WebSocketSessionRemoveListener,
-                   WebSocketJsonMessageReceiveListener,
                    DisposableBean {
 
     private static final Logger logger = LogManager.getLogger(UserAuthService.class);
@@ -38,86 +40,108 @@ public class UserAuthService
     private final UserAuthRepository userAuthRepository;
     private final UserRepository userRepository;
     private final WebSocketEventListenerManager webSocketEventListenerManager;
+    private final WebSocketCommandRouter webSocketCommandRouter;
 
     private final MessageBroker messageBroker;
+    private final MessageClock messageClock;
+    private final SessionResumeService sessionResumeService;
+    private final StateSnapshotRepository stateSnapshotRepository;
+
+    @Value("${websocket.send-time-limit:10000}")
+    private int sendTimeLimit;
+
+    @Value("${websocket.send-buffer-size-limit:524288}")
+    private int sendBufferSizeLimit;
 
     public UserAuthService(
             SessionRepository sessionRepository,
             UserAuthRepository userAuthRepository,
             UserRepository userRepository,
             MessageBroker messageBroker,
-            WebSocketEventListenerManager webSocketEventListenerManager) {
+            MessageClock messageClock,
+            WebSocketEventListenerManager webSocketEventListenerManager,
+            WebSocketCommandRouter webSocketCommandRouter,
+            SessionResumeService sessionResumeService,
+            StateSnapshotRepository stateSnapshotRepository) {
         this.sessionRepository = sessionRepository;
         this.userAuthRepository = userAuthRepository;
         this.userRepository = userRepository;
         this.webSocketEventListenerManager = webSocketEventListenerManager;
+        this.webSocketCommandRouter = webSocketCommandRouter;
         this.messageBroker = messageBroker;
+        this.messageClock = messageClock;
+        this.sessionResumeService = sessionResumeService;
+        this.stateSnapshotRepository = stateSnapshotRepository;
         this.webSocketEventListenerManager.addListener(this);
+        this.webSocketCommandRouter.registerHandler(WebSocketCreateUserRequest.class, this::createUser);
     }
 
     @Override
     public void onSessionAdd(WebSocketSession session) throws Exception {
         String sessionId = session.getId();
-        this.sessionRepository.addEntity(session);
+        // Broker threads send through the decorator, which serializes concurrent sends and
+        // terminates the session once a send takes too long or too much is buffered.
+        this.sessionRepository.addEntity(new ConcurrentWebSocketSessionDecorator(
+                session,
+                this.sendTimeLimit,
+                this.sendBufferSizeLimit,
+                OverflowStrategy.TERMINATE));
         this.userAuthRepository.addEntity(new UserAuth(sessionId, UserAuthState.IN_PROGRESS));
-        JsonNode jsonData = JsonNodeFactory.instance.objectNode()
-                .put("kind", "Auth#createUser")
-                .put("sessionId", sessionId);
-        this.messageBroker.sendMessage(sessionId, jsonData.toString());
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        buffer.append("{\"kind\":\"Auth#createUser\",");
+        JsonTextBuilder.appendField(buffer, "sessionId", sessionId).append('}');
+        this.messageBroker.sendMessage(sessionId, JsonTextBuilder.release(buffer));
     }
 
     @Override
     public void onSessionRemove(WebSocketSession session, CloseStatus closeStatus) throws Exception {
         String sessionId = session.getId();
+        if (this.userRepository.findEntityByKey(sessionId).isPresent()) {
+            this.stateSnapshotRepository.recordUserRemoved(sessionId);
+        }
         this.userRepository.removeEntityByKey(sessionId);
         this.userAuthRepository.removeEntityByKey(sessionId);
         this.sessionRepository.removeEntityByKey(sessionId);
     }
 
-    @Override
-    public void onJsonMessageReceive(WebSocketSession session, JsonNode jsonData) throws Exception {
-        String sessionId = session.getId();
-        if (this.userAuthRepository
-                .findEntityByKey(sessionId)
-                .filter(auth -> auth.getUserAuthState() == UserAuthState.SUCCESS)
-                .isPresent()) {
-            return;
-        }
-        if (!jsonData.get("kind").asText().equals("Auth#createUser")) {
+    public void createUser(SessionContext context, WebSocketCreateUserRequest request) {
+        if (context.isAuthenticated()) {
             return;
         }
-        String payloadSessionId = jsonData.get("sessionId").asText();
-        if (!payloadSessionId.equals(sessionId)) {
-            JsonNode errorMessageData = JsonNodeUtils.crateErrorMessageData(sessionId, "invalid session");
-            this.messageBroker.sendMessage(sessionId, errorMessageData.toString());
+        String sessionId = context.getSessionId();
+        if (!sessionId.equals(request.getSessionId())) {
+            String errorMessage = JsonNodeUtils.createErrorMessage(
+                    sessionId,
+                    "invalid session",
+                    this.messageClock);
+            this.messageBroker.sendMessage(sessionId, errorMessage);
             return;
         }
         this.userAuthRepository.updateUserAuth(new UserAuth(sessionId, UserAuthState.SUCCESS));
-        createAuthenticatedUser(jsonData);
+        createAuthenticatedUser(context, request);
     }
 
     @Override
     public void destroy() {
         this.webSocketEventListenerManager.removeListener(this);
+        this.webSocketCommandRouter.unregisterHandler(WebSocketCreateUserRequest.class);
     }
 
-    private void createAuthenticatedUser(JsonNode jsonData) {
-        String sessionId = jsonData.get("sessionId").asText();
-        String username = jsonData.get("username").asText();
-        WebSocketSession session = this.sessionRepository
-                .findEntityByKey(sessionId)
-                .orElseThrow();
-        User user = new User(session, username, LocalDateTime.now());
+    private void createAuthenticatedUser(SessionContext context, WebSocketCreateUserRequest request) {
+        String sessionId = context.getSessionId();
+        String username = request.getUsername();
+        User user = new User(sessionId, username, this.messageClock.now());
         this.userRepository.addEntity(user);
+        String resumeToken = this.sessionResumeService.issueResumeToken(context);
+        this.stateSnapshotRepository.recordUserAuthenticated(user, context.getResumeTokenHash());
         logger.info("Authenticated User {} has joined.", username);
-        JsonNode responseData = JsonNodeFactory.instance.objectNode()
-                .put("kind", "Auth#authUser")
-                .put("sessionId", user.getSessionId())
-                .put("username", user.getName())
-                .put("joinedTime", user
-                        .getJoinedTime()
-                        .format(DateTimeFormatter.ISO_DATE_TIME));
-        this.messageBroker.sendMessage(sessionId, responseData.toString());
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        buffer.append("{\"kind\":\"Auth#authUser\",");
+        JsonTextBuilder.appendField(buffer, "sessionId", user.getSessionId()).append(',');
+        JsonTextBuilder.appendField(buffer, "username", user.getName()).append(',');
+        JsonTextBuilder.appendField(buffer, "joinedTime", user.getFormattedJoinedTime()).append(',');
+        JsonTextBuilder.appendField(buffer, "resumeToken", resumeToken).append('}');
+        this.messageBroker.sendMessage(sessionId, JsonTextBuilder.release(buffer));
     }
 
 }
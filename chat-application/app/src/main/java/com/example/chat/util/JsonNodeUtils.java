@@ -1,23 +1,18 @@
 package com.example.chat.util;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import com.example.chat.service.MessageClock;
 
 public class JsonNodeUtils {
 
-    public static JsonNode createErrorMessageData(String sessionId, String message, LocalDateTime time) {
-        return JsonNodeFactory.instance.objectNode()
-                .put("sessionId", sessionId)
-                .put("kind", "error")
-                .put("message", message)
-                .put("timestamp", time.format(DateTimeFormatter.ISO_DATE_TIME));
-    }
-
-    public static JsonNode crateErrorMessageData(String sessionId, String message) {
-        return createErrorMessageData(sessionId, message, LocalDateTime.now());
+    public static String createErrorMessage(String sessionId, String message, MessageClock clock) {
+        StringBuilder buffer = JsonTextBuilder.acquire();
+        buffer.append('{');
+        JsonTextBuilder.appendField(buffer, "sessionId", sessionId).append(',');
+        buffer.append("\"kind\":\"error\",");
+        JsonTextBuilder.appendField(buffer, "message", message).append(',');
+        JsonTextBuilder.appendField(buffer, "timestamp", clock.currentTimestamp());
+        buffer.append('}');
+        return JsonTextBuilder.release(buffer);
     }
 
 }
@@ -0,0 +1,49 @@
+package com.example.chat.util;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+public class JsonTextBuilder {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> buffers =
+            ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_CAPACITY));
+
+    // The buffer is shared per thread, so a frame must be released before the next one is
+    // acquired on the same thread.
+    public static StringBuilder acquire() {
+        StringBuilder buffer = buffers.get();
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    public static String release(StringBuilder buffer) {
+        String text = buffer.toString();
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            buffers.set(new StringBuilder(INITIAL_CAPACITY));
+        } else {
+            buffer.setLength(0);
+        }
+        return text;
+    }
+
+    public static StringBuilder appendString(StringBuilder buffer, String value) {
+        if (value == null) {
+            return buffer.append("null");
+        }
+        buffer.append('"');
+        JsonStringEncoder.getInstance().quoteAsString(value, buffer);
+        return buffer.append('"');
+    }
+
+    public static StringBuilder appendField(StringBuilder buffer, String name, String value) {
+        buffer.append('"').append(name).append("\":");
+        return appendString(buffer, value);
+    }
+
+    public static String quote(String value) {
+        return appendString(new StringBuilder(value.length() + 2), value).toString();
+    }
+
+}
@@ -0,0 +1,11 @@
+package com.example.chat.websocket;
+
+import com.example.chat.entity.SessionContext;
+import com.example.chat.entity.websocket.WebSocketRequest;
+
+@FunctionalInterface
+public interface WebSocketCommandHandler<R extends WebSocketRequest> {
+
+    public void handle(SessionContext context, R request) throws Exception;
+
+}
@@ -0,0 +1,13 @@
+package com.example.chat.websocket;
+
+import com.example.chat.entity.websocket.WebSocketRequest;
+
+public interface WebSocketCommandRouter {
+
+    public <R extends WebSocketRequest> void registerHandler(
+            Class<R> requestClass,
+            WebSocketCommandHandler<R> handler);
+
+    public void unregisterHandler(Class<? extends WebSocketRequest> requestClass);
+
+}
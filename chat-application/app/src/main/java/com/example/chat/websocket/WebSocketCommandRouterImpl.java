@@ -0,0 +1,145 @@
+package com.example.chat.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.chat.entity.SessionContext;
+import com.example.chat.entity.websocket.WebSocketRequest;
+import com.example.chat.event.websocket.WebSocketBinaryMessageReceiveListener;
+import com.example.chat.event.websocket.WebSocketTextMessageReceiveListener;
+import com.example.chat.service.MessageBroker;
+import com.example.chat.service.MessageClock;
+import com.example.chat.util.JsonNodeUtils;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+
+@Component
+public class WebSocketCommandRouterImpl
+        implements WebSocketCommandRouter,
+                   WebSocketTextMessageReceiveListener,
+                   WebSocketBinaryMessageReceiveListener,
+                   DisposableBean {
+
+    private static final Logger logger = LogManager.getLogger(WebSocketCommandRouterImpl.class);
+
+    private final Map<Class<?>, WebSocketCommandHandler<?>> handlers;
+    private final WebSocketEventListenerManager webSocketEventListenerManager;
+    private final MessageBroker messageBroker;
+    private final MessageClock messageClock;
+    private final ObjectReader requestReader;
+    private final ObjectReader binaryRequestReader;
+
+    public WebSocketCommandRouterImpl(
+            WebSocketEventListenerManager webSocketEventListenerManager,
+            MessageBroker messageBroker,
+            MessageClock messageClock,
+            ObjectMapper objectMapper,
+            CBORMapper cborMapper) {
+        this.handlers = new ConcurrentHashMap<>();
+        this.webSocketEventListenerManager = webSocketEventListenerManager;
+        this.messageBroker = messageBroker;
+        this.messageClock = messageClock;
+        // Binds frames straight from the parser into the request type selected by "kind",
+        // without building an intermediate JsonNode tree.
+        this.requestReader = objectMapper
+                .readerFor(WebSocketRequest.class)
+                .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        this.binaryRequestReader = cborMapper
+                .readerFor(WebSocketRequest.class)
+                .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        this.webSocketEventListenerManager.addListener(this);
+    }
+
+    @Override
+    public <R extends WebSocketRequest> void registerHandler(
+            Class<R> requestClass,
+            WebSocketCommandHandler<R> handler) {
+        if (this.handlers.putIfAbsent(requestClass, handler) != null) {
+            throw new IllegalStateException("Handler already registered for request: " + requestClass.getName());
+        }
+        logger.info("Registered handler for request: {}", requestClass.getSimpleName());
+    }
+
+    @Override
+    public void unregisterHandler(Class<? extends WebSocketRequest> requestClass) {
+        this.handlers.remove(requestClass);
+    }
+
+    @Override
+    public void onTextMessageReceive(WebSocketSession session, TextMessage message) throws Exception {
+        SessionContext context = SessionContext.fromSession(session);
+        if (context == null) {
+            return;
+        }
+        WebSocketRequest request;
+        try {
+            request = this.requestReader.readValue(message.getPayload());
+        } catch (JsonProcessingException e) {
+            sendErrorMessage(context.getSessionId(), "invalid payload");
+            return;
+        }
+        dispatch(context, request);
+    }
+
+    @Override
+    public void onBinaryMessageReceive(WebSocketSession session, BinaryMessage message) throws Exception {
+        SessionContext context = SessionContext.fromSession(session);
+        if (context == null) {
+            return;
+        }
+        ByteBuffer payload = message.getPayload();
+        WebSocketRequest request;
+        try {
+            if (payload.hasArray()) {
+                request = this.binaryRequestReader.readValue(
+                        payload.array(),
+                        payload.arrayOffset() + payload.position(),
+                        payload.remaining());
+            } else {
+                byte[] bytes = new byte[payload.remaining()];
+                payload.duplicate().get(bytes);
+                request = this.binaryRequestReader.readValue(bytes);
+            }
+        } catch (IOException e) {
+            sendErrorMessage(context.getSessionId(), "invalid payload");
+            return;
+        }
+        dispatch(context, request);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.webSocketEventListenerManager.removeListener(this);
+        this.handlers.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatch(SessionContext context, WebSocketRequest request) throws Exception {
+        WebSocketCommandHandler<WebSocketRequest> handler =
+                (WebSocketCommandHandler<WebSocketRequest>) this.handlers.get(request.getClass());
+        if (handler == null) {
+            sendErrorMessage(context.getSessionId(), "unknown command");
+            return;
+        }
+        handler.handle(context, request);
+    }
+
+    private void sendErrorMessage(String sessionId, String message) {
+        String errorMessage = JsonNodeUtils.createErrorMessage(sessionId, message, this.messageClock);
+        this.messageBroker.sendMessage(sessionId, errorMessage);
+    }
+
+}
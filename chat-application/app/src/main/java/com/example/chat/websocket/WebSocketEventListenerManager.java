@@ -1,8 +1,14 @@
 package com.example.chat.websocket;
 
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
 import com.example.chat.event.EventListenerManager;
 import com.example.chat.event.websocket.WebSocketEventListener;
 
 public interface WebSocketEventListenerManager
         extends EventListenerManager<WebSocketEventListener> {
+
+    public void dispatchSessionRemove(WebSocketSession session, CloseStatus closeStatus) throws Exception;
+
 }
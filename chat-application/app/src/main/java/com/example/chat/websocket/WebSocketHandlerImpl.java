@@ -6,21 +6,28 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
 
+import com.example.chat.entity.SessionContext;
+import com.example.chat.entity.WireFormat;
 import com.example.chat.event.EventListenerManagerBase;
+import com.example.chat.event.websocket.WebSocketBinaryMessageReceiveListener;
 import com.example.chat.event.websocket.WebSocketEventListener;
 import com.example.chat.event.websocket.WebSocketSessionAddListener;
+import com.example.chat.event.websocket.WebSocketSessionDetachListener;
 import com.example.chat.event.websocket.WebSocketSessionRemoveListener;
 import com.example.chat.event.websocket.WebSocketTextMessageReceiveListener;
 
 @Component
 public class WebSocketHandlerImpl
-        extends TextWebSocketHandler
-        implements WebSocketEventListenerManager, DisposableBean {
+        extends AbstractWebSocketHandler
+        implements WebSocketEventListenerManager, SubProtocolCapable, DisposableBean {
 
     private static final Logger logger = LogManager.getLogger(WebSocketHandlerImpl.class);
 
@@ -50,16 +57,54 @@ public class WebSocketHandlerImpl
         }
     }
 
+    @Override
+    public void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        String id = session.getId();
+        logger.info("Session {} sent a binary message of {} bytes", id, message.getPayloadLength());
+        for (WebSocketBinaryMessageReceiveListener listener :
+                this.listenerManager.getWebSocketBinaryMessageReceiveListeners()) {
+            listener.onBinaryMessageReceive(session, message);
+        }
+    }
+
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
         String id = session.getId();
         logger.info("Session closed: {}", id);
+        // Listeners get the session stored in the context, whose ID stays the same after the
+        // context has been resumed on another connection.
+        WebSocketSession current = session;
+        SessionContext context = SessionContext.fromSession(session);
+        if (context != null) {
+            current = context.getSession();
+            if (WebSocketSessionDecorator.unwrap(current) != session) {
+                logger.info("Session {} was already taken over by a resumed connection", id);
+                return;
+            }
+        }
+        for (WebSocketSessionDetachListener listener :
+                this.listenerManager.getWebSocketSessionDetachListeners()) {
+            if (listener.onSessionDetach(current, closeStatus)) {
+                logger.info("Session {} detached and kept for resumption", current.getId());
+                return;
+            }
+        }
+        dispatchSessionRemove(current, closeStatus);
+    }
+
+    @Override
+    public void dispatchSessionRemove(WebSocketSession session, CloseStatus closeStatus) throws Exception {
         for (WebSocketSessionRemoveListener listener :
                 this.listenerManager.getWebSocketSessionRemoveListeners()) {
             listener.onSessionRemove(session, closeStatus);
         }
     }
 
+    @Override
+    public List<String> getSubProtocols() {
+        return WireFormat.getSubProtocols();
+    }
+
     @Override
     public void addListener(WebSocketEventListener listener) {
         this.listenerManager.addListener(listener);
@@ -98,12 +143,21 @@ public class WebSocketHandlerImpl
             return getListeners(WebSocketSessionRemoveListener.class);
         }
 
+        public List<WebSocketSessionDetachListener> getWebSocketSessionDetachListeners() {
+            return getListeners(WebSocketSessionDetachListener.class);
+        }
+
         public List<WebSocketTextMessageReceiveListener> getWebSocketTextMessageReceiveListeners() {
             return getListeners(WebSocketTextMessageReceiveListener.class);
         }
 
+        public List<WebSocketBinaryMessageReceiveListener> getWebSocketBinaryMessageReceiveListeners() {
+            return getListeners(WebSocketBinaryMessageReceiveListener.class);
+        }
+
+        @Override
         public void removeAllListeners() {
-            this.listeners.clear();
+            super.removeAllListeners();
         }
 
     }
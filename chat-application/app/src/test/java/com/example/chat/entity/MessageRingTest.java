@@ -0,0 +1,118 @@
+package com.example.chat.entity;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class MessageRingTest {
+
+    @Test
+    public void appendEvictsOldestOnceFramesRunOut() {
+        LongAdder arenaUsedBytes = new LongAdder();
+        MessageRing ring = new MessageRing(ByteBuffer.allocate(64), 3, arenaUsedBytes);
+        for (String frame : List.of("a", "bb", "ccc", "dddd", "eeeee")) {
+            Assertions.assertTrue(ring.append(bytes(frame)));
+        }
+        Assertions.assertEquals(List.of("ccc", "dddd", "eeeee"), frames(ring));
+        Assertions.assertEquals(12, ring.getUsedBytes());
+        Assertions.assertEquals(12, arenaUsedBytes.sum());
+    }
+
+    @Test
+    public void appendWrapsAroundAndEvictsOverlappedFrames() {
+        LongAdder arenaUsedBytes = new LongAdder();
+        MessageRing ring = new MessageRing(ByteBuffer.allocate(16), 10, arenaUsedBytes);
+        append(ring, "aaaaa", "bbbbb", "ccccc");
+        // Does not fit behind the third frame, so it starts over and takes the first one's place.
+        append(ring, "dddd");
+        Assertions.assertEquals(List.of("bbbbb", "ccccc", "dddd"), frames(ring));
+        append(ring, "eeee");
+        Assertions.assertEquals(List.of("ccccc", "dddd", "eeee"), frames(ring));
+        Assertions.assertEquals(13, ring.getUsedBytes());
+        Assertions.assertEquals(13, arenaUsedBytes.sum());
+    }
+
+    @Test
+    public void appendEvictsFramesSkippedAtEndOfBuffer() {
+        LongAdder arenaUsedBytes = new LongAdder();
+        MessageRing ring = new MessageRing(ByteBuffer.allocate(16), 10, arenaUsedBytes);
+        append(ring, "aaaa", "bbbb", "cccc", "ddd");
+        append(ring, "eeee", "ffff", "gggg");
+        Assertions.assertEquals(List.of("ddd", "eeee", "ffff", "gggg"), frames(ring));
+        // Wrapping leaves the oldest frame behind the write position, so it goes along with
+        // the frames overwritten at the start.
+        append(ring, "hhhhh");
+        Assertions.assertEquals(List.of("gggg", "hhhhh"), frames(ring));
+        Assertions.assertEquals(9, ring.getUsedBytes());
+        Assertions.assertEquals(9, arenaUsedBytes.sum());
+    }
+
+    @Test
+    public void appendKeepsFramesThroughManyWraps() {
+        LongAdder arenaUsedBytes = new LongAdder();
+        MessageRing ring = new MessageRing(ByteBuffer.allocate(100), 8, arenaUsedBytes);
+        List<String> appended = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String frame = "frame-" + i + "-".repeat(i % 13);
+            append(ring, frame);
+            appended.add(frame);
+            List<String> stored = frames(ring);
+            // Whatever is kept is the newest frames, in order.
+            Assertions.assertEquals(appended.subList(appended.size() - stored.size(), appended.size()), stored);
+            Assertions.assertTrue(ring.getUsedBytes() <= 100);
+            Assertions.assertEquals(ring.getUsedBytes(), arenaUsedBytes.sum());
+        }
+    }
+
+    @Test
+    public void appendRejectsFramesThatCannotBeStored() {
+        MessageRing ring = new MessageRing(ByteBuffer.allocate(8), 4, new LongAdder());
+        append(ring, "aaaa");
+        Assertions.assertFalse(ring.append(new byte[0]));
+        Assertions.assertFalse(ring.append(new byte[9]));
+        Assertions.assertEquals(List.of("aaaa"), frames(ring));
+    }
+
+    @Test
+    public void closeReturnsBufferOnce() {
+        LongAdder arenaUsedBytes = new LongAdder();
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        MessageRing ring = new MessageRing(buffer, 4, arenaUsedBytes);
+        append(ring, "aaaa", "bbbb");
+        Assertions.assertSame(buffer, ring.close());
+        Assertions.assertNull(ring.close());
+        Assertions.assertEquals(0, ring.size());
+        Assertions.assertEquals(0, arenaUsedBytes.sum());
+        Assertions.assertFalse(ring.append(bytes("cccc")));
+    }
+
+    @Test
+    public void emptyRingStoresNothing() {
+        Assertions.assertFalse(MessageRing.EMPTY.append(bytes("a")));
+        Assertions.assertEquals(0, MessageRing.EMPTY.size());
+        Assertions.assertEquals(List.of(), frames(MessageRing.EMPTY));
+        Assertions.assertNull(MessageRing.EMPTY.close());
+    }
+
+    private static void append(MessageRing ring, String... frames) {
+        for (String frame : frames) {
+            Assertions.assertTrue(ring.append(bytes(frame)));
+        }
+    }
+
+    private static byte[] bytes(String frame) {
+        return frame.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> frames(MessageRing ring) {
+        List<String> frames = new ArrayList<>();
+        ring.forEach(frame -> frames.add(StandardCharsets.UTF_8.decode(frame).toString()));
+        return frames;
+    }
+
+}
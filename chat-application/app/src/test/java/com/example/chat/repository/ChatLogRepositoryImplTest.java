@@ -0,0 +1,178 @@
+package com.example.chat.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.example.chat.entity.ChatLogPage;
+
+class ChatLogRepositoryImplTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @TempDir
+    private Path directory;
+
+    private ChatLogRepositoryImpl chatLogRepository;
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (this.chatLogRepository != null) {
+            this.chatLogRepository.destroy();
+        }
+    }
+
+    @Test
+    public void reopenKeepsFramesAndSequenceNumbers() throws Exception {
+        UUID roomId = UUID.randomUUID();
+        open(64);
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals(i, append(roomId, "frame-" + i));
+        }
+        reopen(64);
+        ChatLogPage page = this.chatLogRepository.readBefore(roomId, Long.MAX_VALUE, 20);
+        Assertions.assertEquals(0, page.getFirstSequence());
+        Assertions.assertFalse(page.hasMore());
+        Assertions.assertEquals(frames(0, 10), payloads(page));
+        Assertions.assertEquals(10, append(roomId, "frame-10"));
+    }
+
+    @Test
+    public void reopenDropsRecordWithoutLeadingLength() throws Exception {
+        UUID roomId = UUID.randomUUID();
+        int position = appendAndClose(roomId, 3);
+        // The payload and trailing length made it to disk, the leading length did not.
+        writeTornRecord(roomId, position, 0, "torn".getBytes(StandardCharsets.UTF_8), 4);
+        assertRecovered(roomId, 3);
+    }
+
+    @Test
+    public void reopenDropsRecordWithMismatchedTrailingLength() throws Exception {
+        UUID roomId = UUID.randomUUID();
+        int position = appendAndClose(roomId, 3);
+        writeTornRecord(roomId, position, 4, "to".getBytes(StandardCharsets.UTF_8), 0);
+        assertRecovered(roomId, 3);
+    }
+
+    @Test
+    public void reopenDropsRecordRunningPastSegment() throws Exception {
+        UUID roomId = UUID.randomUUID();
+        int position = appendAndClose(roomId, 3);
+        writeTornRecord(roomId, position, SEGMENT_SIZE, new byte[0], 0);
+        assertRecovered(roomId, 3);
+    }
+
+    @Test
+    public void reopenReusesEmptySegmentLeftByCrash() throws Exception {
+        UUID roomId = UUID.randomUUID();
+        appendAndClose(roomId, 3);
+        // A crash right after rolling leaves a segment named after the next sequence number.
+        Path empty = this.directory.resolve(roomId.toString()).resolve(String.format("%020d.log", 3));
+        Files.write(empty, new byte[SEGMENT_SIZE]);
+        assertRecovered(roomId, 3);
+    }
+
+    @Test
+    public void appendToRemovedLogIsRejected() throws Exception {
+        UUID roomId = UUID.randomUUID();
+        open(SEGMENT_SIZE);
+        Assertions.assertEquals(0, append(roomId, "frame-0"));
+        this.chatLogRepository.removeLog(roomId);
+        Assertions.assertEquals(-1, append(roomId, "frame-1"));
+        Assertions.assertFalse(Files.exists(this.directory.resolve(roomId.toString())));
+        ChatLogPage page = this.chatLogRepository.readBefore(roomId, Long.MAX_VALUE, 10);
+        Assertions.assertEquals(List.of(), page.getRecords());
+    }
+
+    @Test
+    public void logsBeyondOpenLimitStayReadable() throws Exception {
+        this.chatLogRepository = new ChatLogRepositoryImpl(
+                this.directory.toString(), SEGMENT_SIZE, 8, 168, 60000, 1, 0);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        // Every log is closed as idle when another one opens, and loaded again on its next use.
+        Assertions.assertEquals(0, append(first, "first-0"));
+        Assertions.assertEquals(0, append(second, "second-0"));
+        Assertions.assertEquals(1, append(first, "first-1"));
+        Assertions.assertEquals(1, append(second, "second-1"));
+        Assertions.assertEquals(
+                List.of("first-0", "first-1"),
+                payloads(this.chatLogRepository.readBefore(first, Long.MAX_VALUE, 10)));
+        Assertions.assertEquals(
+                List.of("second-0", "second-1"),
+                payloads(this.chatLogRepository.readBefore(second, Long.MAX_VALUE, 10)));
+    }
+
+    // Returns the write position in the active segment.
+    private int appendAndClose(UUID roomId, int count) throws Exception {
+        open(SEGMENT_SIZE);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            String frame = "frame-" + i;
+            Assertions.assertEquals(i, append(roomId, frame));
+            position += 2 * Integer.BYTES + frame.length();
+        }
+        this.chatLogRepository.destroy();
+        this.chatLogRepository = null;
+        return position;
+    }
+
+    private void assertRecovered(UUID roomId, int count) throws Exception {
+        open(SEGMENT_SIZE);
+        ChatLogPage page = this.chatLogRepository.readBefore(roomId, Long.MAX_VALUE, 20);
+        Assertions.assertEquals(frames(0, count), payloads(page));
+        // The next frame takes the place of the torn one.
+        Assertions.assertEquals(count, append(roomId, "frame-" + count));
+        reopen(SEGMENT_SIZE);
+        page = this.chatLogRepository.readBefore(roomId, Long.MAX_VALUE, 20);
+        Assertions.assertEquals(frames(0, count + 1), payloads(page));
+    }
+
+    private void writeTornRecord(UUID roomId, int position, int leadingLength, byte[] payload, int trailingLength)
+            throws IOException {
+        Path segment = this.directory.resolve(roomId.toString()).resolve(String.format("%020d.log", 0));
+        ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + payload.length);
+        record.putInt(leadingLength).put(payload).putInt(trailingLength).flip();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(record, position);
+        }
+    }
+
+    private void open(int segmentSize) {
+        this.chatLogRepository = new ChatLogRepositoryImpl(
+                this.directory.toString(), segmentSize, 8, 168, 60000, 1024, 600000);
+    }
+
+    private void reopen(int segmentSize) throws Exception {
+        this.chatLogRepository.destroy();
+        open(segmentSize);
+    }
+
+    private long append(UUID roomId, String frame) {
+        return this.chatLogRepository.append(roomId, frame.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> frames(int from, int to) {
+        return IntStream.range(from, to).mapToObj(i -> "frame-" + i).toList();
+    }
+
+    private static List<String> payloads(ChatLogPage page) {
+        return page.getRecords()
+                .stream()
+                .map(record -> StandardCharsets.UTF_8.decode(record).toString())
+                .toList();
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.example.chat.repository;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.example.chat.entity.Room;
+import com.example.chat.entity.RoomDirectoryChange;
+
+class RoomRepositoryImplTest {
+
+    private RoomRepository roomRepository;
+
+    @BeforeEach
+    public void setUp() {
+        this.roomRepository = createRepository(1024);
+    }
+
+    @Test
+    public void findEntitiesByNamePrefixReturnsEmptyPageOfEmptyDirectory() {
+        Assertions.assertEquals(List.of(), this.roomRepository.findEntitiesByNamePrefix(null, null, 10));
+        Assertions.assertEquals(List.of(), this.roomRepository.findEntitiesByNamePrefix("a", "a", 10));
+    }
+
+    @Test
+    public void findEntitiesByNamePrefixPagesInNameOrder() {
+        createRooms("e", "c", "a", "d", "b");
+        List<Room> first = this.roomRepository.findEntitiesByNamePrefix(null, null, 2);
+        Assertions.assertEquals(List.of("a", "b"), names(first));
+        List<Room> second = this.roomRepository.findEntitiesByNamePrefix(null, "b", 2);
+        Assertions.assertEquals(List.of("c", "d"), names(second));
+        // The last page is short, and nothing follows it.
+        List<Room> last = this.roomRepository.findEntitiesByNamePrefix(null, "d", 2);
+        Assertions.assertEquals(List.of("e"), names(last));
+        Assertions.assertEquals(List.of(), this.roomRepository.findEntitiesByNamePrefix(null, "e", 2));
+    }
+
+    @Test
+    public void findEntitiesByNamePrefixReturnsEmptyPageForCursorPastEnd() {
+        createRooms("a", "b");
+        Assertions.assertEquals(List.of(), this.roomRepository.findEntitiesByNamePrefix(null, "z", 10));
+        Assertions.assertEquals(List.of(), this.roomRepository.findEntitiesByNamePrefix("a", "b", 10));
+    }
+
+    @Test
+    public void findEntitiesByNamePrefixKeepsToPrefix() {
+        createRooms("apple", "banana", "blueberry", "cherry");
+        Assertions.assertEquals(
+                List.of("banana", "blueberry"),
+                names(this.roomRepository.findEntitiesByNamePrefix("b", null, 10)));
+        // A cursor ahead of the prefix starts the page at the prefix.
+        Assertions.assertEquals(
+                List.of("banana", "blueberry"),
+                names(this.roomRepository.findEntitiesByNamePrefix("b", "apple", 10)));
+        Assertions.assertEquals(
+                List.of("blueberry"),
+                names(this.roomRepository.findEntitiesByNamePrefix("b", "banana", 10)));
+    }
+
+    @Test
+    public void findEntitiesByNamePrefixSkipsRemovedRooms() {
+        createRooms("a", "b", "c");
+        this.roomRepository.removeEntity(this.roomRepository.findEntityByName("b").orElseThrow());
+        Assertions.assertEquals(List.of("a", "c"), names(this.roomRepository.findEntitiesByNamePrefix(null, null, 10)));
+    }
+
+    @Test
+    public void findChangesSinceReturnsChangesInOrder() {
+        long version = this.roomRepository.getDirectoryVersion();
+        createRooms("a", "b");
+        Room a = this.roomRepository.findEntityByName("a").orElseThrow();
+        this.roomRepository.removeEntity(a);
+        List<RoomDirectoryChange> changes = this.roomRepository.findChangesSince(version).orElseThrow();
+        Assertions.assertEquals(3, changes.size());
+        Assertions.assertEquals(RoomDirectoryChange.Type.REMOVED, changes.get(2).getType());
+        Assertions.assertEquals(a.getId(), changes.get(2).getRoomId());
+        Assertions.assertEquals(this.roomRepository.getDirectoryVersion(), changes.get(2).getVersion());
+        Assertions.assertEquals(List.of(), this.roomRepository.findChangesSince(changes.get(2).getVersion()).orElseThrow());
+    }
+
+    @Test
+    public void findChangesSinceIsEmptyForUnknownVersions() {
+        RoomRepository roomRepository = createRepository(2);
+        createRooms(roomRepository, "a", "b", "c");
+        long version = roomRepository.getDirectoryVersion();
+        Assertions.assertEquals(Optional.empty(), roomRepository.findChangesSince(version + 1));
+        // The first change is no longer retained.
+        Assertions.assertEquals(Optional.empty(), roomRepository.findChangesSince(version - 3));
+        Assertions.assertEquals(2, roomRepository.findChangesSince(version - 2).orElseThrow().size());
+    }
+
+    private void createRooms(String... names) {
+        createRooms(this.roomRepository, names);
+    }
+
+    private static void createRooms(RoomRepository roomRepository, String... names) {
+        for (String name : names) {
+            Assertions.assertTrue(roomRepository.createIfAbsent(name, 0).isPresent());
+        }
+    }
+
+    private static List<String> names(List<Room> rooms) {
+        return rooms.stream().map(Room::getName).toList();
+    }
+
+    private static RoomRepository createRepository(int changeLogSize) {
+        return new RoomRepositoryImpl(
+                new EntityStoreFactory(EntityStoreType.CONCURRENT_HASH, 16, 1),
+                new RecentMessageArena(),
+                changeLogSize);
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.example.chat.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.example.chat.entity.MessageRing;
+import com.example.chat.entity.Room;
+import com.example.chat.entity.StateSnapshot;
+import com.example.chat.entity.User;
+
+class StateSnapshotRepositoryImplTest {
+
+    @TempDir
+    private Path directory;
+
+    private StateSnapshotRepositoryImpl stateSnapshotRepository;
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (this.stateSnapshotRepository != null) {
+            this.stateSnapshotRepository.destroy();
+        }
+    }
+
+    @Test
+    public void loadReplaysJournal() throws Exception {
+        Room room = createRoom("room");
+        User user = new User("session", "user", LocalDateTime.of(2024, 1, 2, 3, 4, 5, 6));
+        open();
+        this.stateSnapshotRepository.recordRoomCreated(room);
+        this.stateSnapshotRepository.recordUserAuthenticated(user, "hash");
+        this.stateSnapshotRepository.recordMemberJoined(room.getId(), "session");
+        this.stateSnapshotRepository.recordResumeTokenHash("session", "rotated-hash");
+        StateSnapshot snapshot = reopen();
+        StateSnapshot.RoomState roomState = snapshot.getRooms().iterator().next();
+        Assertions.assertEquals(room.getId(), roomState.getId());
+        Assertions.assertEquals("room", roomState.getName());
+        Assertions.assertEquals(16, roomState.getRecentMessageCount());
+        Assertions.assertEquals(Set.of("session"), roomState.getMemberSessionIds());
+        StateSnapshot.UserState userState = snapshot.getUser("session");
+        Assertions.assertEquals("user", userState.getName());
+        Assertions.assertEquals(user.getJoinedTime(), userState.getJoinedTime());
+        Assertions.assertEquals("rotated-hash", userState.getResumeTokenHash());
+    }
+
+    @Test
+    public void loadAppliesJournalWrittenAfterSnapshot() throws Exception {
+        Room first = createRoom("first");
+        Room second = createRoom("second");
+        open();
+        this.stateSnapshotRepository.recordRoomCreated(first);
+        this.stateSnapshotRepository.recordRoomCreated(second);
+        first.getMembers().add(new User("session", "user", LocalDateTime.now()));
+        this.stateSnapshotRepository.recordMemberJoined(first.getId(), "session");
+        long generation = this.stateSnapshotRepository.rotateJournal();
+        this.stateSnapshotRepository.writeSnapshot(generation, List.of(), List.of(first, second));
+        Assertions.assertFalse(this.stateSnapshotRepository.hasChangesSinceSnapshot());
+        // Journals the snapshot covers are gone.
+        Assertions.assertEquals(1, journals().size());
+        this.stateSnapshotRepository.recordRoomRemoved(second.getId());
+        this.stateSnapshotRepository.recordMemberLeft(first.getId(), "session");
+        StateSnapshot snapshot = reopen();
+        Assertions.assertEquals(1, snapshot.getRooms().size());
+        StateSnapshot.RoomState roomState = snapshot.getRooms().iterator().next();
+        Assertions.assertEquals(first.getId(), roomState.getId());
+        Assertions.assertEquals(Set.of(), roomState.getMemberSessionIds());
+    }
+
+    @Test
+    public void loadStopsAtTruncatedRecord() throws Exception {
+        writeRooms("first", "second", "third");
+        Path journal = journals().get(0);
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        Assertions.assertEquals(Set.of("first", "second"), roomNames(reopen()));
+    }
+
+    @Test
+    public void loadStopsAtRecordWithBadChecksum() throws Exception {
+        writeRooms("first", "second", "third");
+        Path journal = journals().get(0);
+        flipLastByte(journal);
+        Assertions.assertEquals(Set.of("first", "second"), roomNames(reopen()));
+    }
+
+    @Test
+    public void loadStopsAtRecordWithInvalidLength() throws Exception {
+        writeRooms("first", "second");
+        Path journal = journals().get(0);
+        Files.write(journal, new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }, StandardOpenOption.APPEND);
+        Assertions.assertEquals(Set.of("first", "second"), roomNames(reopen()));
+    }
+
+    @Test
+    public void loadKeepsJournalingAfterTornRecord() throws Exception {
+        writeRooms("first", "second");
+        Path journal = journals().get(0);
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        Assertions.assertEquals(Set.of("first"), roomNames(reopen()));
+        // Later records go to a new journal rather than after the torn one.
+        this.stateSnapshotRepository.recordRoomCreated(createRoom("third"));
+        Assertions.assertEquals(Set.of("first", "third"), roomNames(reopen()));
+    }
+
+    @Test
+    public void loadReplaysJournalsWhenSnapshotIsCorrupt() throws Exception {
+        Room first = createRoom("first");
+        open();
+        this.stateSnapshotRepository.recordRoomCreated(first);
+        long generation = this.stateSnapshotRepository.rotateJournal();
+        this.stateSnapshotRepository.writeSnapshot(generation, List.of(), List.of(first));
+        this.stateSnapshotRepository.recordRoomCreated(createRoom("second"));
+        this.stateSnapshotRepository.destroy();
+        flipLastByte(this.directory.resolve("snapshot.bin"));
+        open();
+        // The snapshot's rooms are lost along with it, the later journal is not.
+        Assertions.assertEquals(Set.of("second"), roomNames(this.stateSnapshotRepository.load()));
+    }
+
+    private void writeRooms(String... names) throws Exception {
+        open();
+        for (String name : names) {
+            this.stateSnapshotRepository.recordRoomCreated(createRoom(name));
+        }
+        this.stateSnapshotRepository.destroy();
+        this.stateSnapshotRepository = null;
+    }
+
+    private StateSnapshot open() {
+        this.stateSnapshotRepository = new StateSnapshotRepositoryImpl(this.directory.toString());
+        return this.stateSnapshotRepository.load();
+    }
+
+    private StateSnapshot reopen() throws Exception {
+        if (this.stateSnapshotRepository != null) {
+            this.stateSnapshotRepository.destroy();
+        }
+        return open();
+    }
+
+    private List<Path> journals() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files
+                    .filter(file -> file.getFileName().toString().startsWith("journal-"))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static void flipLastByte(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.put(0, (byte) ~last.get(0));
+            last.rewind();
+            channel.write(last, channel.size() - 1);
+        }
+    }
+
+    private static Room createRoom(String name) {
+        return new Room(UUID.randomUUID(), name, new MessageRing(ByteBuffer.allocate(1024), 16, new LongAdder()));
+    }
+
+    private static Set<String> roomNames(StateSnapshot snapshot) {
+        return snapshot.getRooms()
+                .stream()
+                .map(StateSnapshot.RoomState::getName)
+                .collect(Collectors.toSet());
+    }
+
+}
@@ -0,0 +1,348 @@
+package com.example.chat.service.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.example.chat.entity.Room;
+import com.example.chat.entity.User;
+import com.example.chat.repository.ChatLogRepositoryImpl;
+import com.example.chat.repository.EntityStoreFactory;
+import com.example.chat.repository.EntityStoreType;
+import com.example.chat.repository.RecentMessageArena;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.repository.RoomRepositoryImpl;
+import com.example.chat.repository.SessionRepositoryImpl;
+import com.example.chat.repository.StateSnapshotRepositoryImpl;
+import com.example.chat.service.MessageBroker;
+import com.example.chat.service.RoomDirectoryFeed;
+import com.example.chat.service.websocket.MessageClockImpl;
+import com.example.chat.service.websocket.RoomMessageEncoder;
+
+class ClusterMessageBrokerServiceTest {
+
+    private static final long TIMEOUT = 5000;
+
+    @TempDir
+    private Path directory;
+
+    private LoopbackClusterTransport.Hub hub;
+    private Node first;
+    private Node second;
+
+    @BeforeEach
+    public void setUp() {
+        this.hub = new LoopbackClusterTransport.Hub();
+        this.first = new Node("first");
+        this.second = new Node("second");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.first.close();
+        this.second.close();
+    }
+
+    @Test
+    public void createdRoomIsAnnouncedToPeer() {
+        connect();
+        Room room = this.first.createRoom("room");
+        waitUntil(() -> this.second.roomRepository.containsEntityByKey(room.getId()));
+        Room remoteRoom = this.second.roomRepository.findEntityByKey(room.getId()).orElseThrow();
+        Assertions.assertEquals("room", remoteRoom.getName());
+        Assertions.assertEquals(
+                room.getRecentMessages().getMaxFrames(),
+                remoteRoom.getRecentMessages().getMaxFrames());
+    }
+
+    @Test
+    public void roomsCreatedBeforeConnectingAreAnnounced() {
+        Room room = this.first.createRoom("room");
+        connect();
+        waitUntil(() -> this.second.roomRepository.containsEntityByKey(room.getId()));
+    }
+
+    @Test
+    public void removedRoomIsRemovedOnPeer() {
+        connect();
+        Room room = this.first.createRoom("room");
+        waitUntil(() -> this.second.roomRepository.containsEntityByKey(room.getId()));
+        this.first.removeRoom(room);
+        waitUntil(() -> !this.second.roomRepository.containsEntityByKey(room.getId()));
+    }
+
+    @Test
+    public void removedRoomStaysRemovedWhenPeerMissedRemoval() throws Exception {
+        connect();
+        Room room = this.first.createRoom("room");
+        waitUntil(() -> this.second.roomRepository.containsEntityByKey(room.getId()));
+        this.second.disconnect();
+        this.first.removeRoom(room);
+        // The peer comes back still holding the room, empty, and drops it.
+        this.second.connect();
+        waitUntil(() -> !this.second.roomRepository.containsEntityByKey(room.getId()));
+        Assertions.assertFalse(this.first.roomRepository.containsEntityByKey(room.getId()));
+    }
+
+    @Test
+    public void roomInUseSurvivesRemovalByPeer() {
+        connect();
+        Room room = this.first.createRoom("room");
+        waitUntil(() -> this.second.roomRepository.containsEntityByKey(room.getId()));
+        Room remoteRoom = this.second.roomRepository.findEntityByKey(room.getId()).orElseThrow();
+        this.second.join(remoteRoom, "member");
+        waitUntil(() -> this.first.clusterMessageBroker.hasRemoteMembers(room.getId()));
+        // Removed on the first node before the member count arrived there.
+        this.first.roomRepository.removeEntity(room);
+        this.first.clusterMessageBroker.publishRoomRemoved(room.getId());
+        waitUntil(() -> this.first.roomRepository.containsEntityByKey(room.getId()));
+        Assertions.assertTrue(this.second.roomRepository.containsEntityByKey(room.getId()));
+    }
+
+    @Test
+    public void sameNameConflictResolvesToLowerRoomId() {
+        Room firstRoom = this.first.createRoom("lobby");
+        Room secondRoom = this.second.createRoom("lobby");
+        UUID winner = firstRoom.getId().compareTo(secondRoom.getId()) < 0 ? firstRoom.getId() : secondRoom.getId();
+        UUID loser = winner.equals(firstRoom.getId()) ? secondRoom.getId() : firstRoom.getId();
+        connect();
+        for (Node node : List.of(this.first, this.second)) {
+            waitUntil(() -> node.roomRepository
+                    .findEntityByName("lobby")
+                    .map(room -> room.getId().equals(winner))
+                    .orElse(false));
+            Assertions.assertFalse(node.roomRepository.containsEntityByKey(loser));
+            Assertions.assertEquals(1, node.roomRepository.getCount());
+        }
+    }
+
+    @Test
+    public void chatIsFannedOutToPeerMembers() {
+        connect();
+        Room room = this.first.createRoom("room");
+        waitUntil(() -> this.second.roomRepository.containsEntityByKey(room.getId()));
+        Room remoteRoom = this.second.roomRepository.findEntityByKey(room.getId()).orElseThrow();
+        this.first.join(room, "local");
+        this.second.join(remoteRoom, "remote");
+        String message = "{\"kind\":\"Room#sendChat\"}";
+        this.first.clusterMessageBroker.publishChat(room, message, message.getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(List.of(Map.entry(List.of("local"), message)), this.first.messageBroker.getBroadcasts());
+        waitUntil(() -> !this.second.messageBroker.getBroadcasts().isEmpty());
+        Assertions.assertEquals(List.of(Map.entry(List.of("remote"), message)), this.second.messageBroker.getBroadcasts());
+        // Kept in the peer's history of the room as well.
+        Assertions.assertEquals(1, this.second.chatLogRepository.readBefore(room.getId(), Long.MAX_VALUE, 10)
+                .getRecords()
+                .size());
+    }
+
+    @Test
+    public void eventReachesPeerOnlyWithMembers() {
+        connect();
+        Room room = this.first.createRoom("room");
+        waitUntil(() -> this.second.roomRepository.containsEntityByKey(room.getId()));
+        Room remoteRoom = this.second.roomRepository.findEntityByKey(room.getId()).orElseThrow();
+        Assertions.assertFalse(this.first.clusterMessageBroker.hasRemoteMembers(room.getId()));
+        this.second.join(remoteRoom, "remote");
+        waitUntil(() -> this.first.clusterMessageBroker.hasRemoteMembers(room.getId()));
+        this.first.clusterMessageBroker.publishEvent(room, "event");
+        waitUntil(() -> !this.second.messageBroker.getBroadcasts().isEmpty());
+        Assertions.assertEquals(List.of(Map.entry(List.of("remote"), "event")), this.second.messageBroker.getBroadcasts());
+        this.second.leave(remoteRoom, "remote");
+        waitUntil(() -> !this.first.clusterMessageBroker.hasRemoteMembers(room.getId()));
+    }
+
+    @Test
+    public void disconnectedPeerNoLongerHoldsMembers() throws Exception {
+        connect();
+        Room room = this.first.createRoom("room");
+        waitUntil(() -> this.second.roomRepository.containsEntityByKey(room.getId()));
+        this.second.join(this.second.roomRepository.findEntityByKey(room.getId()).orElseThrow(), "remote");
+        waitUntil(() -> this.first.clusterMessageBroker.hasRemoteMembers(room.getId()));
+        this.second.disconnect();
+        waitUntil(() -> !this.first.clusterMessageBroker.hasRemoteMembers(room.getId()));
+    }
+
+    private void connect() {
+        this.first.connect();
+        this.second.connect();
+        waitUntil(() -> this.first.transport.hasPeers() && this.second.transport.hasPeers());
+    }
+
+    private static void waitUntil(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assertions.fail("Timed out waiting for the cluster");
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Assertions.fail("Interrupted");
+            }
+        }
+    }
+
+    // One node's repositories, which outlive its connections to the hub.
+    private class Node {
+
+        private final String nodeId;
+        private final RoomRepository roomRepository;
+        private final RecentMessageArena recentMessageArena;
+        private final ChatLogRepositoryImpl chatLogRepository;
+        private final StateSnapshotRepositoryImpl stateSnapshotRepository;
+        private final SessionRepositoryImpl sessionRepository;
+        private final RecordingMessageBroker messageBroker;
+        private LoopbackClusterTransport transport;
+        private ClusterMessageBrokerService clusterMessageBroker;
+
+        private Node(String nodeId) {
+            EntityStoreFactory entityStoreFactory = new EntityStoreFactory(EntityStoreType.CONCURRENT_HASH, 16, 1);
+            this.nodeId = nodeId;
+            this.recentMessageArena = new RecentMessageArena();
+            this.roomRepository = new RoomRepositoryImpl(entityStoreFactory, this.recentMessageArena, 1024);
+            this.chatLogRepository = new ChatLogRepositoryImpl(
+                    directory.resolve(nodeId).resolve("chat-log").toString(),
+                    4096, 8, 168, 60000, 1024, 600000);
+            this.stateSnapshotRepository = new StateSnapshotRepositoryImpl(
+                    directory.resolve(nodeId).resolve("state").toString());
+            this.sessionRepository = new SessionRepositoryImpl(entityStoreFactory);
+            this.messageBroker = new RecordingMessageBroker();
+            createBroker();
+        }
+
+        public void connect() {
+            this.clusterMessageBroker.afterSingletonsInstantiated();
+        }
+
+        // Leaves the hub, and gets ready to join it again as the same node.
+        public void disconnect() throws Exception {
+            this.clusterMessageBroker.destroy();
+            this.transport.close();
+            createBroker();
+        }
+
+        public Room createRoom(String name) {
+            Room room = this.roomRepository.createIfAbsent(name, 0).orElseThrow();
+            this.clusterMessageBroker.publishRoomCreated(room);
+            return room;
+        }
+
+        public void removeRoom(Room room) {
+            this.roomRepository.removeEntity(room);
+            this.clusterMessageBroker.publishRoomRemoved(room.getId());
+        }
+
+        public void join(Room room, String sessionId) {
+            room.getMembers().add(new User(sessionId, sessionId, LocalDateTime.now()));
+            this.clusterMessageBroker.publishMemberCount(room);
+        }
+
+        public void leave(Room room, String sessionId) {
+            room.getMembers().removeBySessionId(sessionId);
+            this.clusterMessageBroker.publishMemberCount(room);
+        }
+
+        public void close() throws Exception {
+            this.clusterMessageBroker.destroy();
+            this.transport.close();
+            this.chatLogRepository.destroy();
+        }
+
+        private void createBroker() {
+            this.transport = new LoopbackClusterTransport(this.nodeId, hub);
+            this.clusterMessageBroker = new ClusterMessageBrokerService(
+                    this.transport,
+                    this.messageBroker,
+                    this.roomRepository,
+                    this.recentMessageArena,
+                    this.chatLogRepository,
+                    this.stateSnapshotRepository,
+                    new NoOpRoomDirectoryFeed(),
+                    this.sessionRepository,
+                    new RoomMessageEncoder(new MessageClockImpl()),
+                    60000);
+        }
+
+    }
+
+    private static class NoOpRoomDirectoryFeed implements RoomDirectoryFeed {
+
+        @Override
+        public boolean subscribe(String sessionId) {
+            return false;
+        }
+
+        @Override
+        public boolean unsubscribe(String sessionId) {
+            return false;
+        }
+
+        @Override
+        public boolean isSubscribed(String sessionId) {
+            return false;
+        }
+
+        @Override
+        public void publishChanges() {
+        }
+
+    }
+
+    // Keeps every broadcast along with its recipients.
+    private static class RecordingMessageBroker implements MessageBroker {
+
+        private final List<Map.Entry<List<String>, String>> broadcasts = new ArrayList<>();
+
+        public synchronized List<Map.Entry<List<String>, String>> getBroadcasts() {
+            return List.copyOf(this.broadcasts);
+        }
+
+        @Override
+        public synchronized void broadcast(Collection<String> sessionIds, String message) {
+            if (!sessionIds.isEmpty()) {
+                this.broadcasts.add(Map.entry(List.copyOf(sessionIds), message));
+            }
+        }
+
+        @Override
+        public void broadcast(Collection<String> sessionIds, Object message) {
+            Assertions.fail("Unexpected broadcast: " + message);
+        }
+
+        @Override
+        public void sendMessage(String sessionId, String message) {
+        }
+
+        @Override
+        public void sendMessage(String sessionId, Object message) {
+        }
+
+        @Override
+        public void sendCoalescingMessage(String sessionId, String coalesceKey, String message) {
+        }
+
+        @Override
+        public boolean replay(String sessionId, long lastSequence, String message) {
+            return false;
+        }
+
+        @Override
+        public void resume(String sessionId) {
+        }
+
+    }
+
+}
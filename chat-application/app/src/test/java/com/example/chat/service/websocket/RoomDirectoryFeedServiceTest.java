@@ -0,0 +1,199 @@
+package com.example.chat.service.websocket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.chat.entity.Room;
+import com.example.chat.entity.RoomDirectoryChange;
+import com.example.chat.event.websocket.WebSocketEventListener;
+import com.example.chat.repository.EntityStoreFactory;
+import com.example.chat.repository.EntityStoreType;
+import com.example.chat.repository.RecentMessageArena;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.repository.RoomRepositoryImpl;
+import com.example.chat.service.MessageBroker;
+import com.example.chat.websocket.WebSocketEventListenerManager;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class RoomDirectoryFeedServiceTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private RoomRepository roomRepository;
+    private RecordingMessageBroker messageBroker;
+    private RoomDirectoryFeedService roomDirectoryFeed;
+
+    @BeforeEach
+    public void setUp() {
+        this.roomRepository = new RoomRepositoryImpl(
+                new EntityStoreFactory(EntityStoreType.CONCURRENT_HASH, 16, 1),
+                new RecentMessageArena(),
+                4);
+        this.messageBroker = new RecordingMessageBroker();
+        this.roomDirectoryFeed = new RoomDirectoryFeedService(
+                this.roomRepository,
+                new TestEventListenerManager(),
+                this.messageBroker,
+                new RoomMessageEncoder(new MessageClockImpl()));
+        this.roomDirectoryFeed.subscribe("subscriber");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.roomDirectoryFeed.destroy();
+    }
+
+    @Test
+    public void publishChangesSendsBurstAsOneCollapsedFrame() throws Exception {
+        Room first = this.roomRepository.createIfAbsent("first", 0).orElseThrow();
+        Room second = this.roomRepository.createIfAbsent("second", 0).orElseThrow();
+        this.roomRepository.removeEntity(first);
+        this.roomDirectoryFeed.publishChanges();
+        this.roomDirectoryFeed.publishChanges();
+        JsonNode message = awaitMessage(1);
+        Assertions.assertEquals("Room#directoryChanged", message.get("kind").asText());
+        Assertions.assertEquals(this.roomRepository.getDirectoryVersion(), message.get("version").asLong());
+        // The first room came and went within the batch, so subscribers never hear of it.
+        JsonNode created = message.get("roomCreated");
+        Assertions.assertEquals(1, created.size());
+        Assertions.assertEquals(second.getId().toString(), created.get(0).get("roomId").asText());
+        Assertions.assertEquals("second", created.get(0).get("name").asText());
+        Assertions.assertEquals(0, message.get("roomRemoved").size());
+        Thread.sleep(50);
+        Assertions.assertEquals(1, this.messageBroker.getBroadcasts().size());
+    }
+
+    @Test
+    public void publishChangesSendsOnlyChangesSinceLastFrame() throws Exception {
+        Room room = this.roomRepository.createIfAbsent("room", 0).orElseThrow();
+        this.roomDirectoryFeed.publishChanges();
+        awaitMessage(1);
+        this.roomRepository.removeEntity(room);
+        this.roomDirectoryFeed.publishChanges();
+        JsonNode message = awaitMessage(2);
+        Assertions.assertEquals(0, message.get("roomCreated").size());
+        JsonNode removed = message.get("roomRemoved");
+        Assertions.assertEquals(1, removed.size());
+        Assertions.assertEquals(room.getId().toString(), removed.get(0).asText());
+    }
+
+    @Test
+    public void publishChangesAsksForResyncOnceChangesAreLost() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            this.roomRepository.createIfAbsent("room-" + i, 0).orElseThrow();
+        }
+        this.roomDirectoryFeed.publishChanges();
+        JsonNode message = awaitMessage(1);
+        Assertions.assertTrue(message.get("resync").asBoolean());
+        Assertions.assertEquals(this.roomRepository.getDirectoryVersion(), message.get("version").asLong());
+        Assertions.assertNull(message.get("roomCreated"));
+    }
+
+    @Test
+    public void collapseKeepsLatestChangePerRoom() {
+        Room first = this.roomRepository.createIfAbsent("first", 0).orElseThrow();
+        Room second = this.roomRepository.createIfAbsent("second", 0).orElseThrow();
+        List<RoomDirectoryChange> changes = List.of(
+                new RoomDirectoryChange(1, RoomDirectoryChange.Type.CREATED, first),
+                new RoomDirectoryChange(2, RoomDirectoryChange.Type.REMOVED, second),
+                new RoomDirectoryChange(3, RoomDirectoryChange.Type.REMOVED, first),
+                new RoomDirectoryChange(4, RoomDirectoryChange.Type.CREATED, second));
+        // Each room's creation and removal cancel out.
+        Assertions.assertEquals(List.of(), RoomDirectoryChange.collapse(changes));
+        List<RoomDirectoryChange> collapsed = RoomDirectoryChange.collapse(changes.subList(1, 3));
+        Assertions.assertEquals(2, collapsed.size());
+        Assertions.assertEquals(2, collapsed.get(0).getVersion());
+        Assertions.assertEquals(3, collapsed.get(1).getVersion());
+    }
+
+    private JsonNode awaitMessage(int count) throws Exception {
+        waitUntil(() -> this.messageBroker.getBroadcasts().size() >= count);
+        List<String> broadcasts = this.messageBroker.getBroadcasts();
+        return this.objectMapper.readTree(broadcasts.get(count - 1));
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assertions.fail("Timed out waiting for the feed");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static class TestEventListenerManager implements WebSocketEventListenerManager {
+
+        @Override
+        public void addListener(WebSocketEventListener listener) {
+        }
+
+        @Override
+        public void removeListener(WebSocketEventListener listener) {
+        }
+
+        @Override
+        public void dispatchSessionRemove(WebSocketSession session, CloseStatus closeStatus) {
+        }
+
+    }
+
+    // Keeps the text of every broadcast to a subscriber.
+    private static class RecordingMessageBroker implements MessageBroker {
+
+        private final List<String> broadcasts = new ArrayList<>();
+
+        public synchronized List<String> getBroadcasts() {
+            return List.copyOf(this.broadcasts);
+        }
+
+        @Override
+        public synchronized void broadcast(Collection<String> sessionIds, String message) {
+            Assertions.assertTrue(sessionIds.contains("subscriber"));
+            this.broadcasts.add(message);
+        }
+
+        @Override
+        public void broadcast(Collection<String> sessionIds, Object message) {
+            Assertions.fail("Unexpected broadcast: " + message);
+        }
+
+        @Override
+        public void sendMessage(String sessionId, String message) {
+            Assertions.fail("Unexpected message: " + message);
+        }
+
+        @Override
+        public void sendMessage(String sessionId, Object message) {
+            Assertions.fail("Unexpected message: " + message);
+        }
+
+        @Override
+        public void sendCoalescingMessage(String sessionId, String coalesceKey, String message) {
+            Assertions.fail("Unexpected message: " + message);
+        }
+
+        @Override
+        public boolean replay(String sessionId, long lastSequence, String message) {
+            return false;
+        }
+
+        @Override
+        public void resume(String sessionId) {
+        }
+
+    }
+
+}
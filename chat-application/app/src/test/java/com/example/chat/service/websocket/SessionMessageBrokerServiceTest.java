@@ -0,0 +1,398 @@
+package com.example.chat.service.websocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.chat.event.websocket.WebSocketEventListener;
+import com.example.chat.repository.EntityStoreFactory;
+import com.example.chat.repository.EntityStoreType;
+import com.example.chat.repository.SessionRepository;
+import com.example.chat.repository.SessionRepositoryImpl;
+import com.example.chat.websocket.WebSocketEventListenerManager;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+
+class SessionMessageBrokerServiceTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private SessionRepository sessionRepository;
+    private List<WebSocketMessage<?>> deadLetters;
+    private SessionMessageBrokerService messageBroker;
+
+    @BeforeEach
+    public void setUp() {
+        this.sessionRepository = new SessionRepositoryImpl(
+                new EntityStoreFactory(EntityStoreType.CONCURRENT_HASH, 16, 1));
+        this.deadLetters = new ArrayList<>();
+        this.messageBroker = new SessionMessageBrokerService(
+                this.sessionRepository,
+                new TestEventListenerManager(),
+                new ObjectMapper(),
+                new CBORMapper(),
+                (sessionId, message, cause) -> {
+                    synchronized (this.deadLetters) {
+                        this.deadLetters.add(message);
+                    }
+                },
+                new FrameCompressor(6),
+                2);
+        this.messageBroker.setRetryCount(3);
+        this.messageBroker.setRetryBackoff(1, 10);
+        this.messageBroker.setMaxQueuedFrames(1000, OverflowPolicy.DROP_OLDEST);
+        this.messageBroker.setMaxQueuedBytes(1 << 20, OverflowPolicy.CLOSE_SERVICE_OVERLOAD);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.messageBroker.destroy();
+    }
+
+    @Test
+    public void sendMessageKeepsOrderPerSession() {
+        TestSession first = openSession("first");
+        TestSession second = openSession("second");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            expected.add("message-" + i);
+            this.messageBroker.sendMessage("first", "message-" + i);
+            this.messageBroker.sendMessage("second", "message-" + i);
+        }
+        waitUntil(() -> first.getReceived().size() == 500 && second.getReceived().size() == 500);
+        Assertions.assertEquals(expected, first.getReceived());
+        Assertions.assertEquals(expected, second.getReceived());
+    }
+
+    @Test
+    public void sendMessageRetriesFailedSendInOrder() {
+        TestSession session = openSession("session");
+        session.failNextSends(2);
+        this.messageBroker.sendMessage("session", "first");
+        this.messageBroker.sendMessage("session", "second");
+        waitUntil(() -> session.getReceived().size() == 2);
+        Assertions.assertEquals(List.of("first", "second"), session.getReceived());
+        MessageBrokerMetrics metrics = this.messageBroker.getMetrics();
+        Assertions.assertEquals(2, metrics.getRetries());
+        Assertions.assertEquals(0, metrics.getDrops());
+    }
+
+    @Test
+    public void sendMessageDropsAfterLastRetry() {
+        TestSession session = openSession("session");
+        session.failNextSends(3);
+        this.messageBroker.sendMessage("session", "first");
+        this.messageBroker.sendMessage("session", "second");
+        waitUntil(() -> session.getReceived().size() == 1);
+        Assertions.assertEquals(List.of("second"), session.getReceived());
+        MessageBrokerMetrics metrics = this.messageBroker.getMetrics();
+        Assertions.assertEquals(2, metrics.getRetries());
+        Assertions.assertEquals(1, metrics.getDrops());
+        synchronized (this.deadLetters) {
+            Assertions.assertEquals(1, this.deadLetters.size());
+        }
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFrames() throws InterruptedException {
+        this.messageBroker.setMaxQueuedFrames(3, OverflowPolicy.DROP_OLDEST);
+        TestSession session = openSession("session");
+        session.blockNextSend(() -> this.messageBroker.sendMessage("session", "message-0"));
+        for (int i = 1; i <= 5; i++) {
+            this.messageBroker.sendMessage("session", "message-" + i);
+        }
+        MessageBrokerMetrics metrics = this.messageBroker.getMetrics();
+        Assertions.assertEquals(1, metrics.getThrottledSessions());
+        session.release();
+        waitUntil(() -> session.getReceived().size() == 4);
+        Assertions.assertEquals(List.of("message-0", "message-3", "message-4", "message-5"), session.getReceived());
+        Assertions.assertEquals(2, metrics.getOverflowDrops());
+        waitUntil(() -> metrics.getThrottledSessions() == 0);
+    }
+
+    @Test
+    public void dropNewKeepsQueuedFrames() throws InterruptedException {
+        this.messageBroker.setMaxQueuedFrames(2, OverflowPolicy.DROP_NEW);
+        TestSession session = openSession("session");
+        session.blockNextSend(() -> this.messageBroker.sendMessage("session", "message-0"));
+        for (int i = 1; i <= 5; i++) {
+            this.messageBroker.sendMessage("session", "message-" + i);
+        }
+        session.release();
+        waitUntil(() -> session.getReceived().size() == 3);
+        Assertions.assertEquals(List.of("message-0", "message-1", "message-2"), session.getReceived());
+        MessageBrokerMetrics metrics = this.messageBroker.getMetrics();
+        Assertions.assertEquals(3, metrics.getOverflowDrops());
+        waitUntil(() -> metrics.getThrottledSessions() == 0);
+    }
+
+    @Test
+    public void coalesceReplacesQueuedFrameOfSameKey() throws InterruptedException {
+        this.messageBroker.setMaxQueuedFrames(2, OverflowPolicy.COALESCE);
+        TestSession session = openSession("session");
+        session.blockNextSend(() -> this.messageBroker.sendMessage("session", "message-0"));
+        this.messageBroker.sendCoalescingMessage("session", "rooms", "rooms-1");
+        this.messageBroker.sendMessage("session", "message-1");
+        this.messageBroker.sendCoalescingMessage("session", "rooms", "rooms-2");
+        session.release();
+        waitUntil(() -> session.getReceived().size() == 3);
+        Assertions.assertEquals(List.of("message-0", "message-1", "rooms-2"), session.getReceived());
+        MessageBrokerMetrics metrics = this.messageBroker.getMetrics();
+        Assertions.assertEquals(1, metrics.getCoalesced());
+        Assertions.assertEquals(0, metrics.getOverflowDrops());
+        waitUntil(() -> metrics.getThrottledSessions() == 0);
+    }
+
+    @Test
+    public void coalesceWithoutMatchDropsOldestFrame() throws InterruptedException {
+        this.messageBroker.setMaxQueuedFrames(2, OverflowPolicy.COALESCE);
+        TestSession session = openSession("session");
+        session.blockNextSend(() -> this.messageBroker.sendMessage("session", "message-0"));
+        this.messageBroker.sendMessage("session", "message-1");
+        this.messageBroker.sendMessage("session", "message-2");
+        this.messageBroker.sendCoalescingMessage("session", "rooms", "rooms-1");
+        session.release();
+        waitUntil(() -> session.getReceived().size() == 3);
+        Assertions.assertEquals(List.of("message-0", "message-2", "rooms-1"), session.getReceived());
+        MessageBrokerMetrics metrics = this.messageBroker.getMetrics();
+        Assertions.assertEquals(0, metrics.getCoalesced());
+        Assertions.assertEquals(1, metrics.getOverflowDrops());
+    }
+
+    @Test
+    public void closeOnOverflowClosesSession() throws InterruptedException {
+        this.messageBroker.setMaxQueuedFrames(2, OverflowPolicy.CLOSE_SERVICE_OVERLOAD);
+        TestSession session = openSession("session");
+        session.blockNextSend(() -> this.messageBroker.sendMessage("session", "message-0"));
+        for (int i = 1; i <= 3; i++) {
+            this.messageBroker.sendMessage("session", "message-" + i);
+        }
+        Assertions.assertEquals(CloseStatus.SERVICE_OVERLOAD, session.getCloseStatus());
+        MessageBrokerMetrics metrics = this.messageBroker.getMetrics();
+        Assertions.assertEquals(1, metrics.getOverflowCloses());
+        Assertions.assertEquals(0, metrics.getThrottledSessions());
+        // Nothing queued before the overflow is sent once the session is closed.
+        this.messageBroker.sendMessage("session", "message-4");
+        session.release();
+        waitUntil(() -> session.getReceived().size() == 1);
+        Thread.sleep(50);
+        Assertions.assertEquals(List.of("message-0"), session.getReceived());
+    }
+
+    @Test
+    public void closeOnByteOverflowClosesSession() throws InterruptedException {
+        this.messageBroker.setMaxQueuedBytes(16, OverflowPolicy.CLOSE_POLICY_VIOLATION);
+        TestSession session = openSession("session");
+        session.blockNextSend(() -> this.messageBroker.sendMessage("session", "message-0"));
+        this.messageBroker.sendMessage("session", "message-1");
+        Assertions.assertNull(session.getCloseStatus());
+        this.messageBroker.sendMessage("session", "message-2");
+        Assertions.assertEquals(CloseStatus.POLICY_VIOLATION, session.getCloseStatus());
+        Assertions.assertEquals(1, this.messageBroker.getMetrics().getOverflowCloses());
+        session.release();
+    }
+
+    private TestSession openSession(String id) {
+        TestSession session = new TestSession(id);
+        this.sessionRepository.addEntity(session);
+        return session;
+    }
+
+    private static void waitUntil(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assertions.fail("Timed out waiting for the outbox");
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Assertions.fail("Interrupted");
+            }
+        }
+    }
+
+    private static class TestEventListenerManager implements WebSocketEventListenerManager {
+
+        @Override
+        public void addListener(WebSocketEventListener listener) {
+        }
+
+        @Override
+        public void removeListener(WebSocketEventListener listener) {
+        }
+
+        @Override
+        public void dispatchSessionRemove(WebSocketSession session, CloseStatus closeStatus) {
+        }
+
+    }
+
+    // Records the text frames it is sent. Sends can be made to fail, or to wait until
+    // released so that frames pile up in the outbox.
+    private static class TestSession implements WebSocketSession {
+
+        private final String id;
+        private final Map<String, Object> attributes;
+        private final List<String> received;
+        private final AtomicInteger failures;
+        private volatile CountDownLatch blocked;
+        private volatile CountDownLatch released;
+        private volatile CloseStatus closeStatus;
+
+        private TestSession(String id) {
+            this.id = id;
+            this.attributes = new ConcurrentHashMap<>();
+            this.received = new ArrayList<>();
+            this.failures = new AtomicInteger();
+        }
+
+        public List<String> getReceived() {
+            synchronized (this.received) {
+                return List.copyOf(this.received);
+            }
+        }
+
+        public CloseStatus getCloseStatus() {
+            return this.closeStatus;
+        }
+
+        public void failNextSends(int count) {
+            this.failures.set(count);
+        }
+
+        // Holds the next send until release is called, and waits for it to start.
+        public void blockNextSend(Runnable trigger) throws InterruptedException {
+            CountDownLatch blocked = new CountDownLatch(1);
+            this.released = new CountDownLatch(1);
+            this.blocked = blocked;
+            trigger.run();
+            Assertions.assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        public void release() {
+            this.released.countDown();
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            CountDownLatch blocked = this.blocked;
+            if (blocked != null) {
+                this.blocked = null;
+                blocked.countDown();
+                try {
+                    this.released.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (this.failures.getAndUpdate(count -> Math.max(count - 1, 0)) > 0) {
+                throw new IOException("Send failed");
+            }
+            synchronized (this.received) {
+                this.received.add(((TextMessage) message).getPayload());
+            }
+        }
+
+        @Override
+        public String getId() {
+            return this.id;
+        }
+
+        @Override
+        public URI getUri() {
+            return null;
+        }
+
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return new HttpHeaders();
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return this.attributes;
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return null;
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return 0;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return 0;
+        }
+
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return List.of();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.closeStatus == null;
+        }
+
+        @Override
+        public void close() {
+            close(CloseStatus.NORMAL);
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+            this.closeStatus = status;
+        }
+
+    }
+
+}